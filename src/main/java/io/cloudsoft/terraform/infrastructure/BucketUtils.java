@@ -1,28 +1,47 @@
 package io.cloudsoft.terraform.infrastructure;
 
+import java.io.IOException;
+import java.time.Duration;
+
 import org.bouncycastle.util.io.Streams;
 
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.ContentStreamProvider;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
 import software.amazon.awssdk.services.s3.model.DeleteBucketRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.cloudformation.proxy.AmazonWebServicesClientProxy;
 
 public class BucketUtils {
 
+    private static S3Client sharedS3Client;
+
     private AmazonWebServicesClientProxy proxy;
     private S3Client s3Client;
 
     public BucketUtils(AmazonWebServicesClientProxy proxy) {
-        this(proxy, S3Client.create());
+        this(proxy, sharedS3Client());
     }
     public BucketUtils(AmazonWebServicesClientProxy proxy, S3Client s3Client) {
         this.proxy = proxy;
         this.s3Client = s3Client;
     }
     
+    /** One client for the life of the container, shared by all callers (it is thread-safe), as each client
+     * sets up its own HTTP connection pool and credential provider chain, which is slow, more so when cold. */
+    public static synchronized S3Client sharedS3Client() {
+        if (sharedS3Client == null) {
+            sharedS3Client = S3Client.create();
+        }
+        return sharedS3Client;
+    }
+
     public void createBucket(String bucketName) {
         CreateBucketRequest createBucketRequest = CreateBucketRequest.builder()
             .bucket(bucketName)
@@ -51,6 +70,29 @@ public class BucketUtils {
         return result[0];
     }
 
+    /** Opens the object for reading as it is downloaded, unless its ETag is the one given, in which case
+     * S3 sends nothing (<code>304 Not Modified</code>) and this returns null. The call must have started receiving the
+     * object within the timeout. The caller must close the stream. */
+    public ResponseInputStream<GetObjectResponse> openStreamIfNoneMatch(final String bucket, final String key, final String eTag, final Duration timeout) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .ifNoneMatch(eTag)
+                .build();
+        try {
+            // the proxy replaces the request's override configuration with its own, so the timeout is added after
+            return proxy.injectCredentialsAndInvokeV2InputStream(getObjectRequest, request -> s3Client.getObject(request.toBuilder()
+                .overrideConfiguration(request.overrideConfiguration().map(AwsRequestOverrideConfiguration::toBuilder)
+                    .orElseGet(AwsRequestOverrideConfiguration::builder).apiCallTimeout(timeout).build())
+                .build()));
+        } catch (S3Exception e) {
+            if (eTag != null && e.statusCode() == 304) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
     public void upload(String bucketName, String objectKey, RequestBody contents, String mimeType) {
         final PutObjectRequest putReq = PutObjectRequest.builder()
             .bucket(bucketName)
@@ -59,5 +101,20 @@ public class BucketUtils {
             .build();
         proxy.injectCredentialsAndInvokeV2(putReq, request -> s3Client.putObject(request, contents));
     }
+
+    /** Uploads the contents gzip-compressed, with <code>Content-Encoding: gzip</code> so that browsers (and other
+     * HTTP clients) show the original. The contents are compressed as they are sent, and once before to find the
+     * length S3 needs, so the compressed form is never held in memory; the provider must give the same contents each time. */
+    public void uploadGzipped(String bucketName, String objectKey, ContentStreamProvider contents, String mimeType) throws IOException {
+        final long length = GzipCompressingInputStream.compressedLength(contents.newStream());
+        final PutObjectRequest putReq = PutObjectRequest.builder()
+            .bucket(bucketName)
+            .key(objectKey)
+            .contentType(mimeType)
+            .contentEncoding("gzip")
+            .build();
+        final RequestBody body = RequestBody.fromContentProvider(() -> new GzipCompressingInputStream(contents.newStream()), length, mimeType);
+        proxy.injectCredentialsAndInvokeV2(putReq, request -> s3Client.putObject(request, body));
+    }
     
 }
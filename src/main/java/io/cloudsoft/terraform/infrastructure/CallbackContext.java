@@ -1,5 +1,8 @@
 package io.cloudsoft.terraform.infrastructure;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import software.amazon.cloudformation.proxy.ResourceHandlerRequest;
@@ -22,9 +25,18 @@ public class CallbackContext {
     public String stepId;
     public int lastDelaySeconds;
     public String logBucketName;
+    // number of segments written so far in this command to each log (by folder) in the log bucket
+    public Map<String, Integer> logSegments = new LinkedHashMap<>();
     
     // cache this for the duration of a command
     public String processManager;
+
+    // the detached Terraform command running, if any, and when it was started
+    public String runningCommand;
+    public long runningCommandStartMillis;
+    // seconds each command took when it last succeeded for this resource, by command name (eg "TF_APPLY", whichever
+    // handler ran it), kept in the server metadata
+    public Map<String, Long> commandDurations = new LinkedHashMap<>();
     
     // needed for creation only
     public String createdModelIdentifier;
@@ -0,0 +1,175 @@
+package io.cloudsoft.terraform.infrastructure;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import software.amazon.awssdk.http.Abortable;
+
+/** The Terraform configuration for a resource, as a stream to be read once from wherever the model says it is.
+ * <p>
+ * It is meant to be passed straight on to the server without being held in memory: reads pull from the source
+ * (the S3 or HTTP response) only as fast as the consumer writes, so the consumer's back-pressure reaches the source.
+ * As it is read the size is checked against a limit and the SHA-256 is computed, so that once it has been
+ * consumed {@link #verify(String)} can confirm the expected length (where the source declared one) was read
+ * and that the consumer received the same bytes.
+ * <p>
+ * Where the source identifies its content before it is read (a hash of inline content, or an S3 or HTTP ETag)
+ * that is available as the {@link #getFingerprint() fingerprint}, so that an unchanged configuration need not be
+ * read at all; it is then {@link #abandon() abandoned}. Sources which support conditional requests are better
+ * opened through an {@link Opener} given the previous fingerprint, so that an unchanged configuration is not even sent.
+ */
+public class ConfigurationSource implements Closeable {
+
+    public static final long UNKNOWN_LENGTH = -1;
+
+    /** Opens the configuration unless it is known to be unchanged. */
+    public interface Opener {
+        /** Returns null if the source reports its content is still that identified by the given fingerprint
+         * (which may be null, when nothing is known, in which case it is always opened). */
+        ConfigurationSource open(String previousFingerprint) throws IOException;
+    }
+
+    private static final String SHA256_PREFIX = "sha256:";
+
+    private final String description;
+    private final String fingerprint;
+    private final InputStream source;
+    private final long expectedLength;
+    private final long maxLength;
+    private final MessageDigest sha256;
+    private final InputStream stream;
+    private long count;
+
+    public ConfigurationSource(String description, InputStream source, long expectedLength, long maxLength) {
+        this(description, null, source, expectedLength, maxLength);
+    }
+
+    public ConfigurationSource(String description, String fingerprint, InputStream source, long expectedLength, long maxLength) {
+        this.description = description;
+        this.fingerprint = fingerprint == null ? null : fingerprint.replaceAll("\\s+", " ").trim();
+        this.source = source;
+        this.expectedLength = expectedLength;
+        this.maxLength = maxLength;
+        this.sha256 = newSha256();
+        if (expectedLength > maxLength) {
+            throw ConnectorHandlerFailures.unhandled(String.format("Configuration at %s is %d bytes, exceeding the limit of %d bytes",
+                description, expectedLength, maxLength));
+        }
+        this.stream = new CheckingInputStream(source);
+    }
+
+    public static ConfigurationSource of(String description, byte[] contents, long maxLength) {
+        return new ConfigurationSource(description, SHA256_PREFIX + hex(newSha256().digest(contents)),
+            new ByteArrayInputStream(contents), contents.length, maxLength);
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /** Identifies the content without reading it, or null if the source cannot do that. */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /** The content; this can only be read once. */
+    public InputStream getInputStream() {
+        return stream;
+    }
+
+    /** Number of bytes read so far. */
+    public long getCount() {
+        return count;
+    }
+
+    /** SHA-256 (in hex) of the bytes read so far; once the stream is consumed, the SHA-256 of the configuration. */
+    public String getSha256() {
+        try {
+            return hex(((MessageDigest) sha256.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        return String.format("%064x", new BigInteger(1, digest));
+    }
+
+    /** Checks the stream was consumed completely and, if a checksum of what the consumer received is given, that it matches. */
+    public void verify(String receivedSha256) {
+        if (count == 0) {
+            throw ConnectorHandlerFailures.unhandled(String.format("Configuration at %s is empty", description));
+        }
+        if (expectedLength != UNKNOWN_LENGTH && count != expectedLength) {
+            throw ConnectorHandlerFailures.unhandled(String.format("Configuration at %s was truncated: read %d of %d bytes",
+                description, count, expectedLength));
+        }
+        if (receivedSha256 != null && !receivedSha256.trim().equalsIgnoreCase(getSha256())) {
+            throw ConnectorHandlerFailures.unhandled(String.format("Configuration at %s was corrupted in transfer: checksum %s sent but %s received",
+                description, getSha256(), receivedSha256.trim()));
+        }
+    }
+
+    /** Closes the source without reading the rest of it (where it supports that), for when it is not needed after all. */
+    public void abandon() throws IOException {
+        if (source instanceof Abortable) {
+            ((Abortable) source).abort();
+        }
+        source.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private class CheckingInputStream extends FilterInputStream {
+        CheckingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+                if (count > maxLength) {
+                    throw new IOException(String.format("Configuration at %s exceeds the limit of %d bytes", description, maxLength));
+                }
+                sha256.update(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("Skipping is not supported");
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+}
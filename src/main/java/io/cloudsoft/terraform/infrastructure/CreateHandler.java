@@ -2,6 +2,7 @@ package io.cloudsoft.terraform.infrastructure;
 
 import java.io.IOException;
 
+import io.cloudsoft.terraform.infrastructure.commands.RemoteDetachedTerraformProcess.TerraformCommand;
 import io.cloudsoft.terraform.infrastructure.commands.RemoteTerraformOutputsProcess;
 import io.cloudsoft.terraform.infrastructure.commands.RemoteTerraformProcess;
 import software.amazon.cloudformation.proxy.ProgressEvent;
@@ -11,6 +12,10 @@ public class CreateHandler extends TerraformBaseHandler {
     private enum Steps {
         CREATE_LOG_TARGET,
         CREATE_INIT_AND_UPLOAD,
+        CREATE_RUN_TF_INIT_AND_APPLY,
+        CREATE_WAIT_ON_INIT_AND_APPLY_THEN_GET_OUTPUTS_AND_RETURN,
+
+        // steps of creates started by earlier versions, which ran init and apply as separate processes
         CREATE_RUN_TF_INIT,
         CREATE_WAIT_ON_INIT_THEN_RUN_TF_APPLY,
         CREATE_WAIT_ON_APPLY_THEN_GET_OUTPUTS_AND_RETURN
@@ -52,6 +57,12 @@ public class CreateHandler extends TerraformBaseHandler {
             super.preRunStep();
         }
 
+        @Override
+        protected boolean needsConfiguration(Steps step) {
+            // the log target step normally continues straight on to the upload
+            return step == Steps.CREATE_LOG_TARGET || step == Steps.CREATE_INIT_AND_UPLOAD;
+        }
+
         @SuppressWarnings("fallthrough")
         @Override
         protected ProgressEvent<ResourceModel, CallbackContext> runStep() throws IOException {
@@ -96,7 +107,8 @@ public class CreateHandler extends TerraformBaseHandler {
                         /* NOTE: here, and in several other places, we could always proceed to the next
                          * step, but returning often increases transparency and maximises the time
                          * available for each step (avoiding errors due to timeout), so do that if
-                         * we've done things on a step that might have taken a bit of time
+                         * we've done things on a step that might have taken a bit of time;
+                         * the worker still runs the next step straight away if it has time
                          */
                         return statusInProgress();
                     }
@@ -105,25 +117,28 @@ public class CreateHandler extends TerraformBaseHandler {
                     RemoteTerraformProcess.of(this).mkWorkDir();
                     getAndUploadConfiguration(true);
                     
-                    advanceTo(Steps.CREATE_RUN_TF_INIT);
+                    advanceTo(Steps.CREATE_RUN_TF_INIT_AND_APPLY);
                     return statusInProgress();
 
                 case CREATE_RUN_TF_INIT:
-                    tfInit().start();
-                    advanceTo(Steps.CREATE_WAIT_ON_INIT_THEN_RUN_TF_APPLY);
+                case CREATE_RUN_TF_INIT_AND_APPLY:
+                    // one process, so apply starts as soon as init is done rather than when we next check
+                    start(tfInitAndApply());
+                    advanceTo(Steps.CREATE_WAIT_ON_INIT_AND_APPLY_THEN_GET_OUTPUTS_AND_RETURN);
                     return statusInProgress();
 
                 case CREATE_WAIT_ON_INIT_THEN_RUN_TF_APPLY:
-                    if (checkStillRunningOrError(tfInit())) {
+                    if (checkStillRunningOrError(remoteProcessForCommand(TerraformCommand.TF_INIT))) {
                         return statusInProgress();
                     }
-
-                    tfApply().start();
-                    advanceTo(Steps.CREATE_WAIT_ON_APPLY_THEN_GET_OUTPUTS_AND_RETURN);
+                    // init is run again only if what it installs has changed
+                    advanceTo(Steps.CREATE_RUN_TF_INIT_AND_APPLY);
                     return statusInProgress();
 
                 case CREATE_WAIT_ON_APPLY_THEN_GET_OUTPUTS_AND_RETURN:
-                    if (checkStillRunningOrError(tfApply())) {
+                case CREATE_WAIT_ON_INIT_AND_APPLY_THEN_GET_OUTPUTS_AND_RETURN:
+                    if (checkStillRunningOrError(currentStep == Steps.CREATE_WAIT_ON_APPLY_THEN_GET_OUTPUTS_AND_RETURN
+                            ? remoteProcessForCommand(TerraformCommand.TF_APPLY) : tfInitAndApply())) {
                         return statusInProgress();
                     }
 
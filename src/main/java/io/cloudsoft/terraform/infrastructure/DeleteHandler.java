@@ -30,7 +30,7 @@ public class DeleteHandler extends TerraformBaseHandler {
             switch (currentStep) {
                 case DELETE_RUN_TF_DESTROY:
                     advanceTo(Steps.DELETE_WAIT_ON_DESTROY_THEN_RMDIR_AND_RETURN);
-                    tfDestroy().start();
+                    start(tfDestroy());
                     return statusInProgress();
 
                 case DELETE_WAIT_ON_DESTROY_THEN_RMDIR_AND_RETURN:
@@ -0,0 +1,94 @@
+package io.cloudsoft.terraform.infrastructure;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/** Reads another stream in gzip format, compressing it as it is read, so that it can be sent compressed
+ * without the compressed form being held anywhere (unlike {@link java.util.zip.GZIPOutputStream}, which
+ * would have to write it somewhere first).
+ * <p>
+ * The output is the same every time for the same input (the header has no timestamp), so it can be read
+ * once to find its length and again to send it. */
+public class GzipCompressingInputStream extends SequenceInputStream {
+
+    private static final byte[] HEADER = {
+        (byte) 0x1f, (byte) 0x8b,   // magic
+        Deflater.DEFLATED,          // method
+        0,                          // flags
+        0, 0, 0, 0,                 // modification time, not recorded
+        0,                          // extra flags
+        (byte) 0xff,                // OS unknown
+    };
+
+    private final Deflater deflater;
+
+    public GzipCompressingInputStream(InputStream in) {
+        this(in, new CRC32(), new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    }
+
+    private GzipCompressingInputStream(InputStream in, CRC32 crc, Deflater deflater) {
+        super(parts(new CheckedInputStream(in, crc), crc, deflater));
+        this.deflater = deflater;
+    }
+
+    private static Enumeration<InputStream> parts(CheckedInputStream in, CRC32 crc, Deflater deflater) {
+        final Iterator<Object> parts = Arrays.<Object>asList(HEADER, in, null).iterator();
+        return new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return parts.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                final Object part = parts.next();
+                if (part == HEADER) {
+                    return new ByteArrayInputStream(HEADER);
+                }
+                if (part == in) {
+                    return new DeflaterInputStream(in, deflater);
+                }
+                // the trailer, only asked for once the input has been read (and compressed) to its end
+                return new ByteArrayInputStream(trailer(crc.getValue(), deflater.getBytesRead()));
+            }
+        };
+    }
+
+    private static byte[] trailer(long crc, long size) {
+        final byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (crc >> (8 * i));
+            trailer[4 + i] = (byte) (size >> (8 * i));
+        }
+        return trailer;
+    }
+
+    /** The length of the input once compressed, found by compressing it without keeping the result. */
+    public static long compressedLength(InputStream in) throws IOException {
+        try (InputStream gzip = new GzipCompressingInputStream(in)) {
+            return IOUtils.copyLarge(gzip, NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            deflater.end();
+        }
+    }
+
+}
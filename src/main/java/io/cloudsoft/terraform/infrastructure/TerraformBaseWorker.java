@@ -2,21 +2,34 @@ package io.cloudsoft.terraform.infrastructure;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
+import org.apache.commons.io.input.ReaderInputStream;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
+import io.cloudsoft.terraform.infrastructure.commands.BoundedOutputCapture;
 import io.cloudsoft.terraform.infrastructure.commands.RemoteDetachedTerraformProcess;
 import io.cloudsoft.terraform.infrastructure.commands.RemoteDetachedTerraformProcess.TerraformCommand;
 import io.cloudsoft.terraform.infrastructure.commands.RemoteDetachedTerraformProcessNohup;
 import io.cloudsoft.terraform.infrastructure.commands.RemoteDetachedTerraformProcessSystemd;
 import io.cloudsoft.terraform.infrastructure.commands.RemoteTerraformProcess;
+import io.cloudsoft.terraform.infrastructure.commands.SshToolbox;
+import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.CommandResult;
 import lombok.Getter;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.cloudformation.proxy.AmazonWebServicesClientProxy;
@@ -30,9 +43,33 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
     private static final String HTTPS_S3_BUCKET_PREFIX = "https://s3.console.aws.amazon.com/s3/buckets/";
     // Mirror Terraform, which maxes its state checks at 10 seconds when working on long jobs
     private static final int MAX_CHECK_INTERVAL_SECONDS = 10;
+    // but where a command is expected (from previous runs) to take much longer, check at this fraction
+    // of the time it is expected to have left
+    private static final int EXPECTED_REMAINING_FRACTION = 3;
+    // CloudFormation allows each handler invocation 60 seconds
+    private static final long INVOCATION_TIME_LIMIT_MILLIS = 60_000;
+    // another step is run in the same invocation only if at least this much of the limit is left
+    // (and twice as much as the longest step run so far took)
+    private static final long MIN_TIME_FOR_NEXT_STEP_MILLIS = 30_000;
+    // while Terraform runs, an invocation waits for it on the server until this much of the limit is left
+    private static final long WAIT_RESERVE_MILLIS = 20_000;
     // Use YAML doc separator to separate logged messages
     public static final CharSequence LOG_MESSAGE_SEPARATOR = "---";
-    public static final String MAIN_LOG_BUCKET_FILE = "cfn-log.txt";
+    // logs are written as numbered segments (for the user log, one per invocation; for Terraform output, one per poll)
+    // in a folder, listed in order in its index
+    public static final String LOG_INDEX = "index.txt";
+    public static final String USER_LOG_FOLDER = "cfn-log/";
+
+    // independent calls made at the start of an invocation (SSH connect, configuration download), and log writes,
+    // run here concurrently, so that an invocation takes about as long as the slowest of them rather than their sum;
+    // an invocation has at most three at once (log writes are chained), and none waits on another, so a task queued
+    // behind others is only delayed
+    private static final int BACKGROUND_THREADS = 3;
+    private static final ExecutorService BACKGROUND = Executors.newFixedThreadPool(BACKGROUND_THREADS, r -> {
+        Thread t = new Thread(r, "cfn-terraform-background");
+        t.setDaemon(true);
+        return t;
+    });
 
     @Getter
     protected AmazonWebServicesClientProxy proxy;
@@ -48,6 +85,19 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
     private final Class<Steps> stepsEnumClass;
     
     private TerraformParameters parameters;
+    private SshToolbox sshToolbox;
+    private CompletableFuture<Void> connectionPrefetch;
+    private CompletableFuture<ConfigurationSource> configurationPrefetch;
+    // user log messages not yet written to the log bucket
+    private final StringBuilder userLog = new StringBuilder();
+    // Terraform output not yet written to the log bucket, by folder
+    private final Map<String, StringBuilder> pendingLogSegments = new LinkedHashMap<>();
+    private Boolean gzipLogs;
+    // log writes queued in the background, in order, and the first which failed
+    private CompletableFuture<Void> logWrites = CompletableFuture.completedFuture(null);
+    private volatile LogWriteFailure failedLogWrite;
+    // log segments queued in the background and not yet known to be written, undone if they are not
+    private final List<LogSegment> unwrittenLogSegments = new ArrayList<>();
 
     @Getter
     private String commandSummary;
@@ -56,6 +106,9 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
 
     @VisibleForTesting
     boolean storeMetadataOnServer = true;
+    @VisibleForTesting
+    long invocationTimeLimitMillis = INVOCATION_TIME_LIMIT_MILLIS;
+    private long invocationStartMillis;
     
     // === init and accessors ========================
 
@@ -98,13 +151,24 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
         this.parameters = Preconditions.checkNotNull(parameters, "parameters");
     }
 
+    /** Connection to the Terraform server, shared by all remote calls made during this invocation;
+     * closed when {@link #runHandlingError()} exits. */
+    public synchronized SshToolbox getSshToolbox() {
+        if (sshToolbox==null) {
+            sshToolbox = new SshToolbox(getParameters(), logger);
+        }
+        return sshToolbox;
+    }
+
     // === lifecycle ========================
 
     public ProgressEvent<ResourceModel, CallbackContext> runHandlingError() {
+        invocationStartMillis = System.currentTimeMillis();
         try {
             log(getClass().getName() + " lambda starting, model: "+model+", callback: "+callbackContext);
+            prefetch();
             preRunStep();
-            ProgressEvent<ResourceModel, CallbackContext> result = runStep();
+            ProgressEvent<ResourceModel, CallbackContext> result = runStepsWhileTimeAllows();
             log(getClass().getName() + " lambda exiting, status: "+result.getStatus()+", message: "+result.getMessage()+", callback: "+result.getCallbackContext()+", model: "+result.getResourceModel());
             if (OperationStatus.SUCCESS==result.getStatus()) {
                 logUserLogOnly("SUCCESS: "+model);
@@ -130,6 +194,112 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
             logExceptionIncludingUserLog("FAILED: "+e, e);
             log(getClass().getName() + " lambda exiting with error");
             return statusFailed((currentStep!=null ? currentStep+": " : "")+e);
+
+        } finally {
+            awaitBackgroundWork();
+            flushLogs();
+            // everything is written before the result is returned, as the container may be frozen after that
+            awaitLogWrites();
+            closeSshToolbox();
+        }
+    }
+
+    /** Runs the current step and then, for as long as each step advances to another (rather than waiting on Terraform)
+     * and enough of the invocation's time is left, the next one, so that steps with nothing to wait for do not each
+     * cost a callback delay. The result of the last step run is returned to CloudFormation. */
+    private ProgressEvent<ResourceModel, CallbackContext> runStepsWhileTimeAllows() throws IOException {
+        long longestStepMillis = 0;
+        while (true) {
+            final long stepStartMillis = System.currentTimeMillis();
+            final ProgressEvent<ResourceModel, CallbackContext> result = runStep();
+            final long now = System.currentTimeMillis();
+            longestStepMillis = Math.max(longestStepMillis, now - stepStartMillis);
+
+            if (OperationStatus.IN_PROGRESS!=result.getStatus() || currentStep==null || callbackContext.stepId==null
+                    || callbackContext.stepId.equals(currentStep.name())) {
+                // finished, or waiting
+                return result;
+            }
+            final long elapsedMillis = now - invocationStartMillis;
+            if (invocationTimeLimitMillis - elapsedMillis < Math.max(MIN_TIME_FOR_NEXT_STEP_MILLIS, 2 * longestStepMillis)) {
+                log("Leaving step "+callbackContext.stepId+" to the next invocation ("+elapsedMillis+" ms elapsed)");
+                return result;
+            }
+            currentStep = Enum.valueOf(stepsEnumClass, callbackContext.stepId);
+            log("Continuing with step "+currentStep+" in this invocation ("+elapsedMillis+" ms elapsed)");
+        }
+    }
+
+    /** Starts the I/O the coming step will need which does not depend on anything else, so that it proceeds
+     * while {@link #preRunStep()} does its own: opening the SSH connection (after reading the parameters) and,
+     * where the step {@link #needsConfiguration(Enum) needs it}, opening the configuration download.
+     * Callers wait for these only when they use them. */
+    protected void prefetch() {
+        connectionPrefetch = inBackground(() -> getSshToolbox().connect());
+
+        final Steps step = callbackContext.stepId == null ? firstStep() : Enum.valueOf(stepsEnumClass, callbackContext.stepId);
+        if (step != null && needsConfiguration(step)) {
+            configurationPrefetch = CompletableFuture.supplyAsync(
+                () -> getParameters().getConfigurationSource(model, getParameters().getConfigurationMaxBytes(),
+                    getParameters().getConfigurationDownloadTimeoutSeconds(), null), BACKGROUND);
+        }
+    }
+
+    /** Whether the given step reads the configuration (via {@link #getAndUploadConfiguration(boolean)}),
+     * so it can be fetched while the connection is being opened. Only for steps installing it for the first time:
+     * otherwise it is better requested once what is installed is known, so that if unchanged it is not sent at all. */
+    protected boolean needsConfiguration(Steps step) {
+        return false;
+    }
+
+    private Steps firstStep() {
+        final Steps[] steps = stepsEnumClass.getEnumConstants();
+        return steps.length == 0 ? null : steps[0];
+    }
+
+    private interface BackgroundTask {
+        void run() throws Exception;
+    }
+
+    private static CompletableFuture<Void> inBackground(BackgroundTask task) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, BACKGROUND);
+    }
+
+    /** Waits for anything started in the background, so none of it outlives the invocation;
+     * failures are ignored, as whatever needed the result will have seen them already
+     * (or, for the connection, will have connected again and reported its own failure). */
+    private void awaitBackgroundWork() {
+        if (connectionPrefetch != null) {
+            try {
+                connectionPrefetch.join();
+            } catch (Exception e) {
+                // ignored, as above
+            }
+            connectionPrefetch = null;
+        }
+        if (configurationPrefetch != null) {
+            // fetched but not used, eg because the step failed first
+            try {
+                configurationPrefetch.join().abandon();
+            } catch (Exception e) {
+                // ignored, as above
+            }
+            configurationPrefetch = null;
+        }
+    }
+
+    protected synchronized void closeSshToolbox() {
+        if (sshToolbox!=null) {
+            sshToolbox.close();
+            sshToolbox = null;
         }
     }
 
@@ -176,6 +346,7 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
             Map<String,Object> md = new LinkedHashMap<>();
             if (model.getLogBucketName()!=null) md.put("LogBucketName", model.getLogBucketName());
             if (model.getLogBucketUrl()!=null) md.put("LogBucketUrl", model.getLogBucketUrl());
+            if (callbackContext.commandDurations!=null && !callbackContext.commandDurations.isEmpty()) md.put("CommandDurations", callbackContext.commandDurations);
             try {
                 RemoteTerraformProcess.of(this).saveMetadata(md);
             } catch (Exception e) {
@@ -195,6 +366,12 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
     
             if (md.get("LogBucketName")!=null) model.setLogBucketName((String)md.get("LogBucketName"));
             if (md.get("LogBucketUrl")!=null) model.setLogBucketUrl((String)md.get("LogBucketUrl"));
+            if (md.get("CommandDurations") instanceof Map) {
+                callbackContext.commandDurations = new LinkedHashMap<>();
+                ((Map<?,?>)md.get("CommandDurations")).forEach((k, v) -> {
+                    if (v instanceof Number) callbackContext.commandDurations.put(k.toString(), ((Number)v).longValue());
+                });
+            }
             setCallbackLogBucketNameFromModelUrl();
         }
     }
@@ -205,22 +382,28 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
      */
     protected void initLogBucket() {
         setCallbackLogBucketNameFromModelUrl();
-        initLogBucketFirstMessage();
+        // written with the rest of this invocation's messages when it ends
+        logUserLogOnly(firstUserLogMessage());
     }
-    
+
+    /** Writes the first message to the log bucket immediately, returning whether that succeeded,
+     * to check the bucket is writable. */
     protected boolean initLogBucketFirstMessage() {
-        if (userLogsEnabled()) {
-            String msg = Configuration.getDateTimeString()+"  "+
-                commandSummary+" command requested "+" on "+model.getIdentifier()+", command "+getCallbackContext().commandRequestId+"\n";
-            if (callbackContext.getLogBucketName()!=null) {
-                //for debugging:
-                // log("Initializing log bucket "+callbackContext.logBucketName+": "+msg);
-                return uploadCompleteLog(MAIN_LOG_BUCKET_FILE, msg);
+        if (userLogsEnabled() && callbackContext.getLogBucketName()!=null) {
+            if (userLog.length()==0) {
+                // otherwise it is still there from an attempt whose write failed
+                logUserLogOnly(firstUserLogMessage());
             }
+            flushUserLog();
+            return awaitLogWrites();
         }
         return false;
     }
 
+    private String firstUserLogMessage() {
+        return commandSummary+" command requested "+" on "+model.getIdentifier()+", command "+getCallbackContext().commandRequestId;
+    }
+
     protected abstract ProgressEvent<ResourceModel, CallbackContext> runStep() throws IOException;
 
     // === utils ========================
@@ -273,12 +456,66 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
         return true;
     }
     
+    /** Adds the message to the user log, which is written to the log bucket when the invocation ends (see {@link #flushUserLog()}). */
     private void logUserLogOnly(String message) {
-        if (userLogsEnabled()) {
-            uploadCompleteLog(MAIN_LOG_BUCKET_FILE, downloadLog(MAIN_LOG_BUCKET_FILE).orElse("")+
-                Configuration.getDateTimeString()+"  "+message+"\n");
+        if (userLogsEnabled() && callbackContext.getLogBucketName()!=null) {
+            userLog.append(Configuration.getDateTimeString()).append("  ").append(message).append("\n");
+        }
+    }
+
+    /** Queues the Terraform output read during this invocation, then the user log, to be written as the next segment
+     * of each, so each log gets one segment (and one rewrite of its index) per invocation however often it was read. */
+    protected void flushLogs() {
+        pendingLogSegments.forEach((folder, text) -> uploadLogSegment(folder, text.toString()));
+        pendingLogSegments.clear();
+        flushUserLog();
+    }
+
+    /** Queues the messages logged since the last flush to be written as the next segment of the user log.
+     * If they cannot be written (which disables the log bucket) they are kept, to be written if the bucket is
+     * enabled again (eg once it has been created). */
+    protected void flushUserLog() {
+        if (userLog.length()>0) {
+            final String text = userLog.toString();
+            userLog.setLength(0);
+            uploadLogSegment(USER_LOG_FOLDER, text);
         }
     }
+
+    /** Appends to a log in the log bucket without reading it: the text is written as the next numbered segment
+     * in the given folder, then the index of all segments so far, so the log can be read in order by concatenating
+     * the segments the index lists. The number of segments is kept in the callback context.
+     * These are written in the background; see {@link #awaitLogWrites()}, which undoes the count of any segment
+     * not written so the index only ever lists segments which exist. */
+    protected void uploadLogSegment(String folder, String text) {
+        if (callbackContext.getLogBucketName()==null) {
+            return;
+        }
+        if (callbackContext.logSegments==null) {
+            callbackContext.logSegments = new LinkedHashMap<>();
+        }
+        final int segment = callbackContext.logSegments.getOrDefault(folder, 0) + 1;
+        final LogSegment pending = new LogSegment(folder, segment, text);
+        synchronized (unwrittenLogSegments) {
+            unwrittenLogSegments.add(pending);
+        }
+        uploadCompleteLogInBackground(getLogSegmentName(folder, segment), text, () -> {
+            synchronized (unwrittenLogSegments) {
+                unwrittenLogSegments.remove(pending);
+            }
+        });
+        callbackContext.logSegments.put(folder, segment);
+
+        final StringBuilder index = new StringBuilder();
+        for (int i=1; i<=segment; i++) {
+            index.append(getLogSegmentName(folder, i)).append("\n");
+        }
+        uploadCompleteLogInBackground(folder + LOG_INDEX, index.toString());
+    }
+
+    static String getLogSegmentName(String folder, int segment) {
+        return String.format("%s%05d.txt", folder, segment);
+    }
     
     protected final void logException(String message, Throwable e) {
         log(message + "\n" + getStackTraceAsString(e));
@@ -371,7 +608,62 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
             callbackContext.lastDelaySeconds =
                     Math.min(MAX_CHECK_INTERVAL_SECONDS, 2 * callbackContext.lastDelaySeconds);
         }
-        return callbackContext.lastDelaySeconds;
+        final long remainingSeconds = expectedCommandRemainingSeconds(callbackContext);
+        if (remainingSeconds <= 0) {
+            return callbackContext.lastDelaySeconds;
+        }
+        // never past when it is expected to finish, nor longer than it has been running, so a run much faster
+        // than the last is still noticed within about twice the time it takes
+        final long elapsedSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - callbackContext.runningCommandStartMillis);
+        final long expectedDelay = Math.min(remainingSeconds / EXPECTED_REMAINING_FRACTION, elapsedSeconds);
+        return (int) Math.min(remainingSeconds, Math.max(callbackContext.lastDelaySeconds, expectedDelay));
+    }
+
+    /** While a command runs which has succeeded before for this resource, how much longer it is expected to take,
+     * going by how long it took then, so that a long command is checked rarely until it is expected to finish;
+     * 0 if there is no such command, or it has taken longer than expected (in which case the backoff above applies). */
+    long expectedCommandRemainingSeconds(CallbackContext callbackContext) {
+        if (callbackContext.runningCommand==null || callbackContext.commandDurations==null) {
+            return 0;
+        }
+        // by command alone, so eg an update is paced by how long the create took
+        final Long expectedSeconds = callbackContext.commandDurations.get(callbackContext.runningCommand);
+        if (expectedSeconds==null) {
+            return 0;
+        }
+        final long elapsedSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - callbackContext.runningCommandStartMillis);
+        return Math.max(0, expectedSeconds - elapsedSeconds);
+    }
+
+    /** Starts the process, noting when, so that checks on it can be paced by how long it took last time (see {@link #nextDelay(CallbackContext)}). */
+    protected final void start(RemoteDetachedTerraformProcess process) throws IOException {
+        process.start();
+        callbackContext.runningCommand = process.getCommandName();
+        callbackContext.runningCommandStartMillis = System.currentTimeMillis();
+    }
+
+    /** Records how long the process, which has succeeded, took, in the server metadata for next time. */
+    private void recordCommandDuration(RemoteDetachedTerraformProcess process) {
+        if (!process.getCommandName().equals(callbackContext.runningCommand)) {
+            return;
+        }
+        final long seconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - callbackContext.runningCommandStartMillis);
+        callbackContext.runningCommand = null;
+        if (process.getCommandName().equals(TerraformCommand.TF_DESTROY.name())) {
+            // the metadata is deleted with the resource, so there is no next time
+            return;
+        }
+        log(process.getCommandName()+" took "+seconds+" seconds");
+        if (callbackContext.commandDurations==null) {
+            callbackContext.commandDurations = new LinkedHashMap<>();
+        }
+        callbackContext.commandDurations.put(process.getCommandName(), seconds);
+        try {
+            saveMetadata();
+        } catch (Exception e) {
+            // not worth failing for; it only affects how often we check next time
+            log("Unable to record duration of "+process.getCommandName()+": "+e);
+        }
     }
 
     protected final void advanceTo(Steps nextStep) {
@@ -388,41 +680,55 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
         
         // ensure it doesn't change in the middle of a run, even if parameters are changed
         callbackContext.processManager = processManager; 
+        final RemoteDetachedTerraformProcess process;
         if ("systemd".equals(processManager)) {
-            return RemoteDetachedTerraformProcessSystemd.of(this, command);
+            process = RemoteDetachedTerraformProcessSystemd.of(this, command);
             
         } else if ("nohup".equals(processManager)) {
-            return RemoteDetachedTerraformProcessNohup.of(this, command);
+            process = RemoteDetachedTerraformProcessNohup.of(this, command);
             
         } else {
             throw new IllegalStateException("Unsupported process manager type");
         }
+        process.setCacheMaxSizeMb(getParameters().getTerraformCacheMaxSizeMb());
+        return process;
     }
     
     protected final RemoteTerraformProcess remoteTerraformProcess() {
         return RemoteTerraformProcess.of(this);
     }
 
-    protected RemoteDetachedTerraformProcess tfInit() {
-        return remoteProcessForCommand(RemoteDetachedTerraformProcess.TerraformCommand.TF_INIT);
-    }
-
-    protected RemoteDetachedTerraformProcess tfApply() {
-        return remoteProcessForCommand(RemoteDetachedTerraformProcess.TerraformCommand.TF_APPLY);
+    protected RemoteDetachedTerraformProcess tfInitAndApply() {
+        return remoteProcessForCommand(RemoteDetachedTerraformProcess.TerraformCommand.TF_INIT_AND_APPLY);
     }
 
     protected RemoteDetachedTerraformProcess tfDestroy() {
         return remoteProcessForCommand(RemoteDetachedTerraformProcess.TerraformCommand.TF_DESTROY);
     }
 
-    private void drainPendingRemoteLogs(RemoteDetachedTerraformProcess process) throws IOException {
-        String str;
-        str = process.getIncrementalStdout();
-        if (!str.isEmpty())
-            log("New standard output data:\n" + str);
-        str = process.getIncrementalStderr();
-        if (!str.isEmpty())
-            log("New standard error data:\n" + str);
+    /** Logs the output read by a probe and adds it to what is written to the process's logs in the log bucket
+     * (if there is one) when the invocation ends, so those are visible while it runs and complete once it ends;
+     * each stage of a multi-stage process has its own. */
+    private void drainPendingRemoteLogs(RemoteDetachedTerraformProcess process, RemoteDetachedTerraformProcess.ProbeResult status) {
+        for (TerraformCommand stage : process.getLogStages()) {
+            String str;
+            str = status.getIncrementalStdout(stage);
+            if (!str.isEmpty()) {
+                log("New standard output data"+(stage.toString().equals(process.getCommandName()) ? "" : " from "+stage)+":\n" + str);
+                appendLogSegment(stage+"-stdout/", str);
+            }
+            str = status.getIncrementalStderr(stage);
+            if (!str.isEmpty()) {
+                log("New standard error data"+(stage.toString().equals(process.getCommandName()) ? "" : " from "+stage)+":\n" + str);
+                appendLogSegment(stage+"-stderr/", str);
+            }
+        }
+    }
+
+    void appendLogSegment(String folder, String text) {
+        if (callbackContext.getLogBucketName()!=null) {
+            pendingLogSegments.computeIfAbsent(folder, f -> new StringBuilder()).append(text);
+        }
     }
 
     protected boolean checkStillRunningOrError(RemoteDetachedTerraformProcess process) throws IOException {
@@ -431,37 +737,55 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
         // running as that would be a race against short-lived processes and would require a
         // second drain in case the process has finished and would result in a short Terraform
         // log split across two CloudWatch messages for no obvious reason.
-        final boolean isRunning = process.isRunning();
-        drainPendingRemoteLogs(process);
-        if (isRunning) {
-            return true;
+        // The probe does both in a single round trip, in that order.
+        // Rather than return straight away while it is running, we wait for it on the server for as much of this
+        // invocation as we can, shipping its output as it comes, so its end is noticed as soon as it happens
+        // and few invocations are needed however long it runs.
+        RemoteDetachedTerraformProcess.ProbeResult status;
+        boolean waited = false;
+        while (true) {
+            final long waitSeconds = process.getWaitSeconds(getSecondsLeftForWaiting());
+            status = waitSeconds > 0 ? process.waitAndProbe(waitSeconds) : process.probe();
+            drainPendingRemoteLogs(process, status);
+            if (!status.isRunning()) {
+                break;
+            }
+            waited |= waitSeconds > 0;
+            if (waitSeconds <= 0 || getSecondsLeftForWaiting() <= 0) {
+                if (waited) {
+                    // the waiting has been done here, so check again soon
+                    callbackContext.lastDelaySeconds = 0;
+                }
+                return true;
+            }
         }
 
-        final String stdout = process.getFullStdout();
-        final String stderr = process.getFullStderr();
-
-        final String s3BucketName = callbackContext.getLogBucketName();
-        if (s3BucketName != null) {
-            uploadCompleteLog(process.getCommandName()+"-"+"stdout.txt", stdout);
-            uploadCompleteLog(process.getCommandName()+"-"+"stderr.txt", stderr);
-        }
+        // all the output has been logged (and shipped) by the probes, so only the end of it is needed here, to report;
+        // if it failed, that of the stage which failed, otherwise that of the last stage (eg apply, not init before it)
+        final List<TerraformCommand> stages = TerraformCommand.valueOf(process.getCommandName()).getStages();
+        final TerraformCommand stage = status.getFailedStage()!=null ? status.getFailedStage()
+            : stages.get(stages.size()-1);
+        final CommandResult output = process.getOutputTail(stage, BoundedOutputCapture.DEFAULT_LIMIT);
+        final String stdout = output.getStdout();
+        final String stderr = output.getStderr();
 
-        // FIXME: instead of retrieving the full log files it would be faster to accumulate the
-        //  incremental fragments already retrieved above.
         try {
-            if (!process.wasFailure()) {
+            if (!status.isFailure()) {
+                recordCommandDuration(process);
                 if (!stderr.isEmpty()) {
                     // Any stderr output is not the wanted result because usually it is a side
                     // effect of the remote process' failure, but combined with a non-raised fault
                     // flag it may mean a bug (a failure to fail) in Terraform or in the resource
                     // provider code, hence report this separately to make it easier to relate.
-                    log("Spurious remote stderr:\n" + stderr);
+                    log("Spurious remote stderr (ending):\n" + stderr);
                 }
             } else {
-                final String message = String.format("Error in %s: %s", process.getCommandName(), process.getErrorString());
+                final String message = stage.toString().equals(process.getCommandName())
+                    ? String.format("Error in %s: %s", process.getCommandName(), status.getErrorString())
+                    : String.format("Error in %s (of %s): %s", stage, process.getCommandName(), status.getErrorString());
                 log(message);
-                log(stderr.isEmpty() ? "(Remote stderr is empty.)" : "Remote stderr:\n" + stderr);
-                log(stdout.isEmpty() ? "(Remote stdout is empty.)" : "Remote stdout:\n" + stdout);
+                log(stderr.isEmpty() ? "(Remote stderr is empty.)" : "Remote stderr (ending):\n" + stderr);
+                log(stdout.isEmpty() ? "(Remote stdout is empty.)" : "Remote stdout (ending):\n" + stdout);
                 throw ConnectorHandlerFailures.handled(message+"; see logs for more detail.");
             }
             return false;
@@ -470,29 +794,37 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
         }
     }
 
+    private long getSecondsLeftForWaiting() {
+        return TimeUnit.MILLISECONDS.toSeconds(invocationTimeLimitMillis - WAIT_RESERVE_MILLIS - (System.currentTimeMillis() - invocationStartMillis));
+    }
+
     // This call actually consists of two network transfers, hence for large files is more
     // likely to time out. However, splitting it into two FSM states would require some place
     // to keep the downloaded file. The callback context isn't intended for that, neither is
     // the lambda's runtime filesystem.
-    // There would be one more transfer if the CloudFormation template defines any Terraform
-    // variables, so the above note would apply even more.
+    // The configuration is streamed from its source to the server as it is downloaded,
+    // so it is never held in memory here, then installed along with any Terraform variables.
+    // On updates the source is asked for it only if it has changed since it was last installed.
     protected final void getAndUploadConfiguration(boolean firstTime) throws IOException {
-        remoteTerraformProcess().uploadConfiguration(getParameters().getConfiguration(model), model.getVariables(), firstTime);
+        remoteTerraformProcess().uploadConfiguration(this::takeConfigurationSource, model.getVariables(), firstTime);
     }
 
-    private Optional<String> downloadLog(String objectSuffix) {
-        String bucketName = callbackContext.getLogBucketName();
-        if (bucketName!=null) {
-            BucketUtils bucketUtils = new BucketUtils(proxy);
-            final String objectKey = getLogFileObjectKey(objectSuffix);
-            try {
-                return Optional.of(new String(bucketUtils.download(bucketName, objectKey)));
-            } catch (Exception e) {
-                log(String.format("Failed to retrieve log file %s from S3 bucket %s: %s (%s)", objectKey, bucketName, e.getClass().getName(), e.getMessage()));
-                return Optional.empty();
+    /** The configuration source opened by {@link #prefetch()} if there is one, otherwise one newly opened
+     * if it has changed since the given fingerprint (or null if it has not). */
+    private ConfigurationSource takeConfigurationSource(String previousFingerprint) throws IOException {
+        final CompletableFuture<ConfigurationSource> prefetched = configurationPrefetch;
+        configurationPrefetch = null;
+        if (prefetched == null) {
+            return getParameters().getConfigurationSource(model, getParameters().getConfigurationMaxBytes(),
+                getParameters().getConfigurationDownloadTimeoutSeconds(), previousFingerprint);
+        }
+        try {
+            return prefetched.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-        } else {
-            return Optional.empty();
+            throw new IOException(e.getCause());
         }
     }
 
@@ -506,23 +838,124 @@ public abstract class TerraformBaseWorker<Steps extends Enum<Steps>> {
         }
         return folder + callbackContext.getCommandRequestId()+"-"+getCommandSummary()+"/"+objectSuffix;
     }
+    private synchronized boolean isGzipLogs() {
+        if (gzipLogs==null) {
+            gzipLogs = "gzip".equals(getParameters().getLogsCompression());
+        }
+        return gzipLogs;
+    }
+
+    /** Writes the log now, after any queued by {@link #uploadCompleteLogInBackground(String, String)},
+     * returning whether it (and they) succeeded; on failure logs are disabled. */
     protected boolean uploadCompleteLog(String objectSuffix, String text) {
+        if (!awaitLogWrites()) {
+            return false;
+        }
         String bucketName = callbackContext.getLogBucketName();
         if (bucketName!=null) {
-            BucketUtils bucketUtils = new BucketUtils(proxy);
             final String objectKey = getLogFileObjectKey(objectSuffix);
             try {
-                bucketUtils.upload(bucketName, objectKey, RequestBody.fromString(text), "text/plain");
+                putLog(bucketName, objectKey, text);
                 return true;
-                
+
             } catch (Exception e) {
-                log(String.format("Failed to put log file %s into S3 bucket %s: %s (%s); disabling logs", objectKey, bucketName, e.getClass().getName(), e.getMessage()));
-                
-                callbackContext.logBucketName = null;
-                setModelLogBucketUrlFromCallbackContextName();
+                disableLogs(bucketName, objectKey, e);
                 return false;
             }
         }
         return false;
     }
+
+    /** Queues the log to be written in the background, after those queued before it; see {@link #awaitLogWrites()}. */
+    protected void uploadCompleteLogInBackground(String objectSuffix, String text) {
+        uploadCompleteLogInBackground(objectSuffix, text, null);
+    }
+
+    private void uploadCompleteLogInBackground(String objectSuffix, String text, Runnable afterWrite) {
+        final String bucketName = callbackContext.getLogBucketName();
+        if (bucketName!=null) {
+            final String objectKey = getLogFileObjectKey(objectSuffix);
+            logWrites = logWrites.thenRunAsync(() -> {
+                if (failedLogWrite==null) {
+                    try {
+                        putLog(bucketName, objectKey, text);
+                        if (afterWrite!=null) {
+                            afterWrite.run();
+                        }
+                    } catch (Exception e) {
+                        failedLogWrite = new LogWriteFailure(bucketName, objectKey, e);
+                    }
+                }
+            }, BACKGROUND);
+        }
+    }
+
+    /** Waits for the logs queued to be written in the background, returning whether they were all written;
+     * if any failed the rest are skipped and logs are disabled, as for a failed {@link #uploadCompleteLog(String, String)}.
+     * The segments not written are then no longer counted, and the text of the user log's is kept to be written again. */
+    protected boolean awaitLogWrites() {
+        logWrites.join();
+        final LogWriteFailure failed = failedLogWrite;
+        final List<LogSegment> unwritten;
+        synchronized (unwrittenLogSegments) {
+            unwritten = new ArrayList<>(unwrittenLogSegments);
+            unwrittenLogSegments.clear();
+        }
+        if (failed!=null) {
+            failedLogWrite = null;
+            final StringBuilder unwrittenUserLog = new StringBuilder();
+            for (LogSegment segment : unwritten) {
+                // segments are written in order, so those after the first not written were not written either
+                if (callbackContext.logSegments.getOrDefault(segment.folder, 0) >= segment.number) {
+                    callbackContext.logSegments.put(segment.folder, segment.number - 1);
+                }
+                if (USER_LOG_FOLDER.equals(segment.folder)) {
+                    unwrittenUserLog.append(segment.text);
+                }
+            }
+            userLog.insert(0, unwrittenUserLog);
+            disableLogs(failed.bucketName, failed.objectKey, failed.error);
+            return false;
+        }
+        return true;
+    }
+
+    private static class LogSegment {
+        final String folder, text;
+        final int number;
+
+        LogSegment(String folder, int number, String text) {
+            this.folder = folder;
+            this.number = number;
+            this.text = text;
+        }
+    }
+
+    private static class LogWriteFailure {
+        final String bucketName, objectKey;
+        final Exception error;
+
+        LogWriteFailure(String bucketName, String objectKey, Exception error) {
+            this.bucketName = bucketName;
+            this.objectKey = objectKey;
+            this.error = error;
+        }
+    }
+
+    private void disableLogs(String bucketName, String objectKey, Exception e) {
+        log(String.format("Failed to put log file %s into S3 bucket %s: %s (%s); disabling logs", objectKey, bucketName, e.getClass().getName(), e.getMessage()));
+
+        callbackContext.logBucketName = null;
+        setModelLogBucketUrlFromCallbackContextName();
+    }
+
+    protected void putLog(String bucketName, String objectKey, String text) throws IOException {
+        BucketUtils bucketUtils = new BucketUtils(proxy);
+        if (isGzipLogs()) {
+            bucketUtils.uploadGzipped(bucketName, objectKey,
+                () -> new ReaderInputStream(new StringReader(text), StandardCharsets.UTF_8), "text/plain");
+        } else {
+            bucketUtils.upload(bucketName, objectKey, RequestBody.fromString(text), "text/plain");
+        }
+    }
 }
@@ -1,20 +1,32 @@
 package io.cloudsoft.terraform.infrastructure;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.io.IOUtils;
 
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.ssm.SsmClient;
 import software.amazon.awssdk.services.ssm.model.GetParameterRequest;
 import software.amazon.awssdk.services.ssm.model.GetParameterResponse;
+import software.amazon.awssdk.services.ssm.model.GetParametersByPathRequest;
+import software.amazon.awssdk.services.ssm.model.GetParametersByPathResponse;
 import software.amazon.awssdk.services.ssm.model.ParameterNotFoundException;
 import software.amazon.cloudformation.proxy.AmazonWebServicesClientProxy;
 import software.amazon.cloudformation.proxy.Logger;
@@ -23,13 +35,34 @@ public class TerraformParameters {
 
     private static final String PREFIX = "/cfn/terraform";
     private static final int DEFAULT_SSH_PORT = 22;
+    private static final int DEFAULT_SSH_CONNECTION_IDLE_SECONDS = 300;
+    private static final int DEFAULT_SSH_COMMAND_TIMEOUT_SECONDS = 30;
+    private static final int DEFAULT_CONFIGURATION_MAX_SIZE_MB = 512;
+    private static final int DEFAULT_CONFIGURATION_DOWNLOAD_TIMEOUT_SECONDS = 30;
+    private static final int DEFAULT_TERRAFORM_CACHE_MAX_SIZE_MB = 2048;
     private static final String DEFAULT_PROCESS_MANAGER = "nohup";
+    private static final String DEFAULT_LOGS_COMPRESSION = "none";
+    private static final int DEFAULT_PARAMETER_CACHE_TTL_SECONDS = 300;
+    /** cached parameters are refreshed in the background once this much of their TTL has passed */
+    private static final int REFRESH_AHEAD_PERCENT = 80;
+
+    private static CachedSnapshot cachedSnapshot;
+    private static boolean refreshing;
+    private static SsmClient sharedSsmClient;
+    private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "parameter-refresher");
+        t.setDaemon(true);
+        return t;
+    });
+
     // allow this so that parameters can be set, as they don't allow blanks or null
     private static final Set<String> DEFAULT_KEYWORDS = new LinkedHashSet<>(Arrays.asList("default", "disabled", "off"));
     private final Logger logger;
     private final AmazonWebServicesClientProxy proxy;
     private final SsmClient ssmClient;
     private final S3Client s3Client;
+    private Map<String, String> snapshot;
+    private boolean snapshotUnavailable;
 
     public TerraformParameters(Logger logger, AmazonWebServicesClientProxy proxy, SsmClient ssmClient, S3Client s3Client) {
         this.logger = logger;
@@ -39,7 +72,15 @@ public class TerraformParameters {
     }
 
     public TerraformParameters(Logger logger, AmazonWebServicesClientProxy proxy) {
-        this(logger, proxy, SsmClient.create(), S3Client.create());
+        this(logger, proxy, sharedSsmClient(), BucketUtils.sharedS3Client());
+    }
+
+    /** One client for the life of the container, as for {@link BucketUtils#sharedS3Client()}. */
+    private static synchronized SsmClient sharedSsmClient() {
+        if (sharedSsmClient == null) {
+            sharedSsmClient = SsmClient.create();
+        }
+        return sharedSsmClient;
     }
     
     protected boolean isDefault(Object x) {
@@ -64,6 +105,87 @@ public class TerraformParameters {
         }
     }
 
+    /** How long an idle SSH connection is kept open for reuse by later invocations; 0 disables reuse. */
+    public int getSshConnectionIdleSeconds() {
+        final String idle = getParameterValue("ssh-connection-idle-seconds", false);
+        if (isDefault(idle)) {
+            return DEFAULT_SSH_CONNECTION_IDLE_SECONDS;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(idle.trim()));
+
+        } catch (Exception e) {
+            throw ConnectorHandlerFailures.unhandled("Parameter 'ssh-connection-idle-seconds' is invalid: '"+idle+"'");
+
+        }
+    }
+
+    /** How long a single command run over SSH (not a detached Terraform process) may take. */
+    public int getSshCommandTimeoutSeconds() {
+        final String timeout = getParameterValue("ssh-command-timeout-seconds", false);
+        if (isDefault(timeout)) {
+            return DEFAULT_SSH_COMMAND_TIMEOUT_SECONDS;
+        }
+        try {
+            return Integer.parseInt(timeout.trim());
+
+        } catch (Exception e) {
+            throw ConnectorHandlerFailures.unhandled("Parameter 'ssh-command-timeout-seconds' is invalid: '"+timeout+"'");
+
+        }
+    }
+
+    /** Largest configuration (or zip of configuration) which will be uploaded to the server. */
+    public long getConfigurationMaxBytes() {
+        final String max = getParameterValue("configuration-max-size-mb", false);
+        if (isDefault(max)) {
+            return DEFAULT_CONFIGURATION_MAX_SIZE_MB * 1024L * 1024L;
+        }
+        try {
+            return Long.parseLong(max.trim()) * 1024L * 1024L;
+
+        } catch (Exception e) {
+            throw ConnectorHandlerFailures.unhandled("Parameter 'configuration-max-size-mb' is invalid: '"+max+"'");
+
+        }
+    }
+
+    /** How long connecting to, and then each wait for data from, the configuration URL or S3 path may take. */
+    public int getConfigurationDownloadTimeoutSeconds() {
+        final String timeout = getParameterValue("configuration-download-timeout-seconds", false);
+        if (isDefault(timeout)) {
+            return DEFAULT_CONFIGURATION_DOWNLOAD_TIMEOUT_SECONDS;
+        }
+        try {
+            return Integer.parseInt(timeout.trim());
+
+        } catch (Exception e) {
+            throw ConnectorHandlerFailures.unhandled("Parameter 'configuration-download-timeout-seconds' is invalid: '"+timeout+"'");
+
+        }
+    }
+
+    /** Size above which the provider and module cache shared by all stacks on the server is pruned; 0 disables the cache. */
+    public long getTerraformCacheMaxSizeMb() {
+        final String max = getParameterValue("terraform-cache-max-size-mb", false);
+        if (isDefault(max)) {
+            return DEFAULT_TERRAFORM_CACHE_MAX_SIZE_MB;
+        }
+        try {
+            return Math.max(0, Long.parseLong(max.trim()));
+
+        } catch (Exception e) {
+            throw ConnectorHandlerFailures.unhandled("Parameter 'terraform-cache-max-size-mb' is invalid: '"+max+"'");
+
+        }
+    }
+
+    /** Algorithms to propose first when connecting over SSH, comma-separated; null to use the connector's defaults. */
+    public String getSshAlgorithms() {
+        final String algorithms = getParameterValue("ssh-algorithms", false);
+        return isDefault(algorithms) || algorithms.trim().isEmpty() ? null : algorithms.trim();
+    }
+
     public String getProcessManager() {
         String pm = getParameterValue("process-manager", false);
         if (isDefault(pm)) {
@@ -91,6 +213,19 @@ public class TerraformParameters {
         return fp;
     }
 
+    /** How logs are stored in the log bucket: <code>none</code> or <code>gzip</code>. */
+    public String getLogsCompression() {
+        String compression = getParameterValue("logs-compression", false);
+        if (isDefault(compression)) {
+            compression = DEFAULT_LOGS_COMPRESSION;
+        }
+        compression = compression.trim().toLowerCase();
+        if (compression.equals("none") || compression.equals("gzip")) {
+            return compression;
+        }
+        throw ConnectorHandlerFailures.unhandled("Parameter 'logs-compression' is invalid: '" + compression + "'");
+    }
+
     public String getLogsS3BucketName() {
         String bp = getParameterValue("logs-s3-bucket-name", false);
         if (isDefault(bp)) {
@@ -99,7 +234,143 @@ public class TerraformParameters {
         return bp;
     }
 
+    /** Loads all parameters under {@link #PREFIX} in one (paged) request, so that the accessors above
+     * need not make a request each. Returns null if that is not possible (eg the role lacks
+     * <code>ssm:GetParametersByPath</code>), in which case parameters are requested individually.
+     * <p>
+     * The result is also kept for later invocations in the same (warm) container for
+     * <code>parameter-cache-ttl-seconds</code>, and refreshed in the background as it nears expiry,
+     * so that most invocations make no SSM requests at all. One instance uses the same values throughout. */
+    private synchronized Map<String, String> getSnapshot() {
+        if (snapshot == null && !snapshotUnavailable) {
+            final CachedSnapshot cached = getCachedSnapshot();
+            if (cached != null && !cached.isExpired()) {
+                snapshot = cached.values;
+                if (cached.isDueForRefresh()) {
+                    refreshInBackground();
+                }
+            } else {
+                try {
+                    snapshot = loadSnapshot();
+                } catch (RuntimeException e) {
+                    snapshotUnavailable = true;
+                    if (logger != null) {
+                        logger.log("Parameters under '" + PREFIX + "' could not be retrieved together (" + e + "); "
+                            + "retrieving them individually. Allow ssm:GetParametersByPath to avoid this.");
+                    }
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private Map<String, String> loadSnapshot() {
+        final Map<String, String> result = new LinkedHashMap<>();
+        String nextToken = null;
+        do {
+            final GetParametersByPathRequest request = GetParametersByPathRequest.builder()
+                .path(PREFIX)
+                .withDecryption(true)
+                .nextToken(nextToken)
+                .build();
+            final GetParametersByPathResponse response = proxy.injectCredentialsAndInvokeV2(request,
+                ssmClient::getParametersByPath);
+            response.parameters().forEach(p -> result.put(p.name(), p.value()));
+            nextToken = response.nextToken();
+        } while (nextToken != null);
+        setCachedSnapshot(new CachedSnapshot(result, getCacheTtlMillis(result)));
+        return result;
+    }
+
+    private long getCacheTtlMillis(Map<String, String> values) {
+        final String ttl = values.get(PREFIX + "/parameter-cache-ttl-seconds");
+        if (isDefault(ttl)) {
+            return TimeUnit.SECONDS.toMillis(DEFAULT_PARAMETER_CACHE_TTL_SECONDS);
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Integer.parseInt(ttl.trim())));
+        } catch (Exception e) {
+            // not worth failing for; the other parameters are fine
+            if (logger != null) {
+                logger.log("Parameter 'parameter-cache-ttl-seconds' is invalid: '"+ttl+"'; using default");
+            }
+            return TimeUnit.SECONDS.toMillis(DEFAULT_PARAMETER_CACHE_TTL_SECONDS);
+        }
+    }
+
+    private void refreshInBackground() {
+        synchronized (TerraformParameters.class) {
+            if (refreshing) {
+                return;
+            }
+            refreshing = true;
+        }
+        REFRESHER.submit(() -> {
+            try {
+                loadSnapshot();
+            } catch (Exception e) {
+                // keep using the cached values until they expire, then we'll load them in the foreground
+                if (logger != null) {
+                    logger.log("Background refresh of parameters failed: " + e);
+                }
+            } finally {
+                synchronized (TerraformParameters.class) {
+                    refreshing = false;
+                }
+            }
+        });
+    }
+
+    /** Discards the parameters cached by this instance and for later invocations, so they are read again,
+     * eg because an authentication failure suggests the SSH key has been rotated. */
+    public synchronized void refresh() {
+        invalidateCachedParameters();
+        snapshot = null;
+        snapshotUnavailable = false;
+    }
+
+    /** Discards the parameters cached for later invocations. */
+    public static synchronized void invalidateCachedParameters() {
+        cachedSnapshot = null;
+    }
+
+    private static synchronized CachedSnapshot getCachedSnapshot() {
+        return cachedSnapshot;
+    }
+
+    private static synchronized void setCachedSnapshot(CachedSnapshot snapshot) {
+        cachedSnapshot = snapshot.ttlMillis > 0 ? snapshot : null;
+    }
+
+    private static class CachedSnapshot {
+        final Map<String, String> values;
+        final long loadedAt = System.currentTimeMillis();
+        final long ttlMillis;
+
+        CachedSnapshot(Map<String, String> values, long ttlMillis) {
+            this.values = values;
+            this.ttlMillis = ttlMillis;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - loadedAt >= ttlMillis;
+        }
+
+        boolean isDueForRefresh() {
+            return System.currentTimeMillis() - loadedAt >= ttlMillis * REFRESH_AHEAD_PERCENT / 100;
+        }
+    }
+
     private String getParameterValue(String id, boolean required) {
+        final Map<String, String> snapshot = getSnapshot();
+        if (snapshot != null) {
+            final String value = snapshot.get(PREFIX + "/" + id);
+            if (value == null && required) {
+                throw ConnectorHandlerFailures.unhandled("Parameter '"+id+"' must be set in parameter store.");
+            }
+            return value;
+        }
+
         GetParameterRequest getParameterRequest = GetParameterRequest.builder()
                 .name(PREFIX + "/" + id)
                 .withDecryption(true)
@@ -126,16 +397,44 @@ public class TerraformParameters {
         }
     }
 
-    public byte[] getConfiguration(ResourceModel model) {
+    /** Opens the configuration for streaming, without reading it, unless the source reports it is unchanged since
+     * the given {@link ConfigurationSource#getFingerprint() fingerprint}, in which case this returns null.
+     * A URL is requested with <code>If-None-Match</code> (or, if it gave no ETag, <code>If-Modified-Since</code>)
+     * and an S3 object with <code>If-None-Match</code>, so that when it is unchanged nothing is sent.
+     * The caller must close the result. */
+    public ConfigurationSource getConfigurationSource(ResourceModel model, long maxLength, int timeoutSeconds, String previousFingerprint) {
         if (model.getConfigurationContent() != null) {
-            return model.getConfigurationContent().getBytes(StandardCharsets.UTF_8);
+            return ConfigurationSource.of("ConfigurationContent", model.getConfigurationContent().getBytes(StandardCharsets.UTF_8), maxLength);
         }
 
         if (model.getConfigurationUrl() != null) {
+            final String url = model.getConfigurationUrl();
             try {
-                return IOUtils.toByteArray(new URL(model.getConfigurationUrl()));
+                final URLConnection connection = new URL(url).openConnection();
+                connection.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(timeoutSeconds));
+                connection.setReadTimeout((int) TimeUnit.SECONDS.toMillis(timeoutSeconds));
+                final String previousEtag = getFingerprintField(previousFingerprint, url, "etag");
+                final String previousModified = getFingerprintField(previousFingerprint, url, "modified");
+                if (previousEtag != null) {
+                    connection.setRequestProperty("If-None-Match", previousEtag);
+                } else if (previousModified != null && previousModified.matches("[0-9]+")) {
+                    connection.setIfModifiedSince(Long.parseLong(previousModified));
+                }
+                if (connection instanceof HttpURLConnection
+                        && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    // no body; closing the stream lets the connection be reused
+                    connection.getInputStream().close();
+                    return null;
+                }
+                final InputStream stream = connection.getInputStream();
+                final long length = connection.getContentLengthLong();
+                final String etag = connection.getHeaderField("ETag");
+                final long modified = connection.getLastModified();
+                final String fingerprint = etag != null ? url + " etag " + etag
+                    : modified > 0 ? url + " modified " + modified : null;
+                return new ConfigurationSource(url, fingerprint, stream, length < 0 ? ConfigurationSource.UNKNOWN_LENGTH : length, maxLength);
             } catch (IOException e) {
-                throw ConnectorHandlerFailures.unhandled("Failed to download file at " + model.getConfigurationUrl(), e);
+                throw ConnectorHandlerFailures.unhandled("Failed to download file at " + url, e);
             }
         }
 
@@ -150,11 +449,21 @@ public class TerraformParameters {
             final String key = matcher.group(2);
 
             try {
-                byte[] result = new BucketUtils(proxy, s3Client).download(bucket, key);
-                if (result.length==0) {
-                    throw ConnectorHandlerFailures.unhandled(String.format("S3 file at %s is empty", model.getConfigurationS3Path()));
+                // the ETag changes whenever the object does, including when a new version is written to a versioned bucket
+                final String previousEtag = getFingerprintField(previousFingerprint, model.getConfigurationS3Path(), "etag");
+                final ResponseInputStream<GetObjectResponse> stream = new BucketUtils(proxy, s3Client).openStreamIfNoneMatch(bucket, key,
+                    previousEtag, Duration.ofSeconds(timeoutSeconds));
+                if (stream == null && previousEtag != null) {
+                    return null;
                 }
-                return result;
+                final GetObjectResponse response = stream.response();
+                final Long length = response == null ? null : response.contentLength();
+                final String fingerprint = response == null || response.eTag() == null ? null
+                    : model.getConfigurationS3Path() + " etag " + response.eTag() + (response.versionId() == null ? "" : " version " + response.versionId());
+                return new ConfigurationSource(model.getConfigurationS3Path(), fingerprint, stream,
+                    length == null ? ConfigurationSource.UNKNOWN_LENGTH : length, maxLength);
+            } catch (ConnectorHandlerFailures.Unhandled e) {
+                throw e;
             } catch (Exception e) {
                 throw ConnectorHandlerFailures.unhandled(String.format("Failed to get S3 Terraform configuration file at %s: check it exists and roles/permissions set for this type connector", model.getConfigurationS3Path()), e);
             }
@@ -163,4 +472,17 @@ public class TerraformParameters {
         throw ConnectorHandlerFailures.unhandled("No Configuration properties are set.");
     }
 
+    /** The value recorded in a fingerprint written by {@link #getConfigurationSource(ResourceModel, long, int, String)}
+     * for the given source, eg the ETag in <code>&lt;source&gt; etag &lt;etag&gt; [version &lt;id&gt;]</code>; null if there is none
+     * (including if the fingerprint is for a different source). */
+    static String getFingerprintField(String fingerprint, String source, String field) {
+        final String prefix = source + " " + field + " ";
+        if (fingerprint == null || !fingerprint.startsWith(prefix)) {
+            return null;
+        }
+        final String value = fingerprint.substring(prefix.length());
+        final int version = value.indexOf(" version ");
+        return version >= 0 ? value.substring(0, version) : value;
+    }
+
 }
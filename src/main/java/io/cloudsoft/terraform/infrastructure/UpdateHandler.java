@@ -2,12 +2,17 @@ package io.cloudsoft.terraform.infrastructure;
 
 import java.io.IOException;
 
+import io.cloudsoft.terraform.infrastructure.commands.RemoteDetachedTerraformProcess.TerraformCommand;
 import software.amazon.cloudformation.proxy.ProgressEvent;
 
 public class UpdateHandler extends TerraformBaseHandler {
 
     private enum Steps {
         UPDATE_SYNC_FILE,
+        UPDATE_RUN_TF_INIT_AND_APPLY,
+        UPDATE_WAIT_ON_INIT_AND_APPLY_THEN_RETURN,
+
+        // steps of updates started by earlier versions, which ran apply alone
         UPDATE_RUN_TF_APPLY,
         UPDATE_WAIT_ON_APPLY_THEN_RETURN
     }
@@ -26,16 +31,20 @@ public class UpdateHandler extends TerraformBaseHandler {
             switch (currentStep) {
                 case UPDATE_SYNC_FILE:
                     getAndUploadConfiguration(false);
-                    advanceTo(Steps.UPDATE_RUN_TF_APPLY);
+                    advanceTo(Steps.UPDATE_RUN_TF_INIT_AND_APPLY);
                     return statusInProgress();
 
                 case UPDATE_RUN_TF_APPLY:
-                    advanceTo(Steps.UPDATE_WAIT_ON_APPLY_THEN_RETURN);
-                    tfApply().start();
+                case UPDATE_RUN_TF_INIT_AND_APPLY:
+                    // init is only run if the providers or modules changed (eg a module was added)
+                    advanceTo(Steps.UPDATE_WAIT_ON_INIT_AND_APPLY_THEN_RETURN);
+                    start(tfInitAndApply());
                     return statusInProgress();
 
                 case UPDATE_WAIT_ON_APPLY_THEN_RETURN:
-                    if (checkStillRunningOrError(tfApply())) {
+                case UPDATE_WAIT_ON_INIT_AND_APPLY_THEN_RETURN:
+                    if (checkStillRunningOrError(currentStep == Steps.UPDATE_WAIT_ON_APPLY_THEN_RETURN
+                            ? remoteProcessForCommand(TerraformCommand.TF_APPLY) : tfInitAndApply())) {
                         return statusInProgress();
                     }
 
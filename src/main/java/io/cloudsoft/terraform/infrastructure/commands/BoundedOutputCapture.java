@@ -0,0 +1,88 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/** Keeps the first and last bytes written to it, and a count of all of them,
+ * for diagnostics on output which is too large (or too uninteresting) to keep in full. */
+public class BoundedOutputCapture extends OutputStream {
+
+    public static final int DEFAULT_LIMIT = 4096;
+
+    private final byte[] head, tail;
+    private int headLength;
+    /** next position to write in the tail ring */
+    private int tailPos;
+    private long count;
+
+    public BoundedOutputCapture() {
+        this(DEFAULT_LIMIT, DEFAULT_LIMIT);
+    }
+
+    public BoundedOutputCapture(int headLimit, int tailLimit) {
+        head = new byte[headLimit];
+        tail = new byte[tailLimit];
+    }
+
+    /** abbreviates the given text as a capture with the default limits would */
+    public static String summarize(String text) {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= 2 * DEFAULT_LIMIT) {
+            return text;
+        }
+        final BoundedOutputCapture capture = new BoundedOutputCapture();
+        capture.write(bytes, 0, bytes.length);
+        return capture.toString();
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        count += len;
+        final int toHead = Math.min(len, head.length - headLength);
+        System.arraycopy(b, off, head, headLength, toHead);
+        headLength += toHead;
+        off += toHead;
+        len -= toHead;
+        if (tail.length == 0) {
+            return;
+        }
+        if (len > tail.length) {
+            off += len - tail.length;
+            len = tail.length;
+        }
+        while (len > 0) {
+            final int chunk = Math.min(len, tail.length - tailPos);
+            System.arraycopy(b, off, tail, tailPos, chunk);
+            tailPos = (tailPos + chunk) % tail.length;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /** total number of bytes written, including those not kept */
+    public synchronized long size() {
+        return count;
+    }
+
+    /** the head and tail, with a note of how much was omitted between them if anything was */
+    @Override
+    public synchronized String toString() {
+        final long tailCount = Math.min(count - headLength, tail.length);
+        final byte[] tailBytes = new byte[(int) tailCount];
+        // the ring is only full once more than its length has been written to it
+        final int start = count - headLength > tail.length ? tailPos : 0;
+        for (int i = 0; i < tailCount; i++) {
+            tailBytes[i] = tail[(start + i) % tail.length];
+        }
+        final long omitted = count - headLength - tailCount;
+        return new String(head, 0, headLength, StandardCharsets.UTF_8)
+            + (omitted > 0 ? "\n... [" + omitted + " bytes omitted] ...\n" : "")
+            + new String(tailBytes, StandardCharsets.UTF_8);
+    }
+
+}
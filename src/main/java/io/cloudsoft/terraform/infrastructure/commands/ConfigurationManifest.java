@@ -0,0 +1,93 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** What was last installed in a work directory, as recorded in the manifest file next to the metadata.
+ * <p>
+ * The manifest is a text file written on the server: header lines starting <code>#</code> with the source fingerprint,
+ * the SHA-256 of the configuration as uploaded and of the variables, followed by one line per installed file
+ * in <code>sha256sum</code> format, so the server can check the files with <code>sha256sum -c</code>.
+ * When read back, an <code>#intact</code> line appended by the reading command says whether that check passed.
+ */
+public class ConfigurationManifest {
+
+    static final String
+        SOURCE = "source",
+        SHA256 = "sha256",
+        VARS = "vars",
+        INTACT = "intact";
+
+    /** Recorded in place of a hash when there is nothing to hash (eg no variables). */
+    public static final String NONE = "none";
+
+    /** Shell pattern (for <code>grep -E</code>) matching the paths {@link #isSafePath(String)} rejects. */
+    static final String UNSAFE_PATH_PATTERN = "(^/|(^|/)\\.\\.(/|$))";
+
+    private final Map<String, String> headers;
+    private final Map<String, String> files;
+
+    private ConfigurationManifest(Map<String, String> headers, Map<String, String> files) {
+        this.headers = headers;
+        this.files = files;
+    }
+
+    /** Parses the manifest as printed by the server; returns null if there is none. */
+    public static ConfigurationManifest parse(String text) {
+        if (text == null || text.trim().isEmpty()) {
+            return null;
+        }
+        final Map<String, String> headers = new LinkedHashMap<>();
+        final Map<String, String> files = new LinkedHashMap<>();
+        for (String line : text.split("\n")) {
+            if (line.startsWith("#")) {
+                final String[] kv = line.substring(1).split(" ", 2);
+                headers.put(kv[0], kv.length > 1 ? kv[1].trim() : "");
+            } else if (line.length() > 66 && isSafePath(line.substring(66))) {
+                // sha256sum format: hash, space, space (or '*' in binary mode), path;
+                // a path outside the work directory is ignored, so it is never deleted as no longer wanted
+                files.put(line.substring(66), line.substring(0, 64));
+            }
+        }
+        return new ConfigurationManifest(headers, files);
+    }
+
+    /** Whether the path is relative and stays within the directory it is relative to, ie is not absolute and has no
+     * <code>..</code> segment, so is safe to install or delete there. */
+    public static boolean isSafePath(String path) {
+        if (path.isEmpty() || path.startsWith("/")) {
+            return false;
+        }
+        for (String segment : path.split("/")) {
+            if (segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Fingerprint of the source, if it had one, allowing the download to be skipped when it matches. */
+    public String getSourceFingerprint() {
+        return headers.get(SOURCE);
+    }
+
+    public String getContentSha256() {
+        return headers.get(SHA256);
+    }
+
+    public String getVarsSha256() {
+        return headers.get(VARS);
+    }
+
+    /** Whether all the files listed were still present and unchanged on the server when read. */
+    public boolean isIntact() {
+        return "yes".equals(headers.get(INTACT));
+    }
+
+    /** Installed files, relative to the work directory, with their SHA-256. */
+    public Map<String, String> getFiles() {
+        return Collections.unmodifiableMap(files);
+    }
+
+}
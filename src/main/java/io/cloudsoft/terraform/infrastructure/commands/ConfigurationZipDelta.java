@@ -0,0 +1,245 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+/** Compares the files in a zipped configuration with those installed on the server (as listed in its
+ * {@link ConfigurationManifest}) and writes a zip of just those which were added or changed.
+ * <p>
+ * The archive is read as a stream, one entry at a time; each entry is held (in memory, or in a temporary
+ * file if it is large) only until its hash is known, so memory use is bounded by the largest entry kept in memory,
+ * not by the archive.
+ * <p>
+ * The delta zip is written without unix file modes (which {@link ZipOutputStream} cannot write), so the modes
+ * recorded in the archive's central directory, which is read once the entries have been, are given by
+ * {@link #getModes()} for the caller to apply.
+ */
+public class ConfigurationZipDelta {
+
+    static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+
+    private static final int IN_MEMORY_ENTRY_LIMIT = 4 * 1024 * 1024;
+
+    // more than ZipInputStream reads ahead, so the start of the central directory is kept once the entries are read
+    private static final int TAIL_KEPT_WHILE_READING_ENTRIES = 4096;
+
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+    private static final int MADE_BY_UNIX = 3;
+
+    private final Map<String, String> installed;
+    private final Map<String, String> files = new LinkedHashMap<>();
+    private final List<String> changed = new ArrayList<>();
+    private final List<String> removed = new ArrayList<>();
+    private final List<String> skipped = new ArrayList<>();
+    private final Map<String, Integer> modes = new LinkedHashMap<>();
+
+    /** @param installed files currently installed, with their SHA-256, as in {@link ConfigurationManifest#getFiles()} */
+    public ConfigurationZipDelta(Map<String, String> installed) {
+        this.installed = installed;
+    }
+
+    /** Whether the stream (which must support mark) starts like a zip; the stream is left where it was. */
+    public static boolean isZip(InputStream in) throws IOException {
+        in.mark(ZIP_MAGIC.length);
+        try {
+            final byte[] magic = new byte[ZIP_MAGIC.length];
+            return IOUtils.read(in, magic) == magic.length && Arrays.equals(magic, ZIP_MAGIC);
+        } finally {
+            in.reset();
+        }
+    }
+
+    /** Reads the whole archive (to its end, including anything after the last entry, so the caller can check
+     * the length and checksum of the source) and writes a zip of the added and changed entries to the output,
+     * which is then finished but not closed. */
+    public void write(InputStream archive, OutputStream out) throws IOException {
+        final TailOutputStream tail = new TailOutputStream(TAIL_KEPT_WHILE_READING_ENTRIES);
+        final InputStream teed = new TeeInputStream(archive, tail);
+        final ZipInputStream zin = new ZipInputStream(teed);
+        final ZipOutputStream zout = new ZipOutputStream(out);
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            final String name = normalize(entry.getName());
+            if (!ConfigurationManifest.isSafePath(name)) {
+                // never installed, nor recorded, so it cannot later be deleted from outside the work directory
+                skipped.add(entry.getName());
+                continue;
+            }
+            final MessageDigest sha256 = newSha256();
+            final DeferredFileOutputStream held = new DeferredFileOutputStream(IN_MEMORY_ENTRY_LIMIT, "cfn-terraform-entry", ".tmp", null);
+            try {
+                try (OutputStream digesting = new DigestOutputStream(held, sha256)) {
+                    IOUtils.copy(zin, digesting);
+                }
+                final String hash = String.format("%064x", new BigInteger(1, sha256.digest()));
+                files.put(name, hash);
+                if (!hash.equals(installed.get(name))) {
+                    changed.add(name);
+                    final ZipEntry copy = new ZipEntry(name);
+                    copy.setTime(entry.getTime());
+                    zout.putNextEntry(copy);
+                    if (held.isInMemory()) {
+                        zout.write(held.getData());
+                    } else {
+                        try (InputStream in = Files.newInputStream(held.getFile().toPath())) {
+                            IOUtils.copy(in, zout);
+                        }
+                    }
+                    zout.closeEntry();
+                }
+            } finally {
+                if (!held.isInMemory()) {
+                    Files.deleteIfExists(held.getFile().toPath());
+                }
+            }
+        }
+        // drain anything after the entries (the central directory) so the whole source is read, keeping all of it
+        tail.keepAll();
+        IOUtils.copy(teed, NullOutputStream.NULL_OUTPUT_STREAM);
+        readModes(tail.toByteArray());
+        zout.finish();
+        zout.flush();
+
+        for (String name : installed.keySet()) {
+            if (!files.containsKey(name) && ConfigurationManifest.isSafePath(name)) {
+                removed.add(name);
+            }
+        }
+    }
+
+    /** Records the unix modes of the files, from the central directory at the end of the given tail of the archive;
+     * records none if it is not all there, eg if the archive is zip64, or was not made on unix. */
+    private void readModes(byte[] tail) {
+        final ByteBuffer buf = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        int end = tail.length - END_OF_CENTRAL_DIRECTORY_LENGTH;
+        while (end >= 0 && buf.getInt(end) != END_OF_CENTRAL_DIRECTORY) {
+            end--;
+        }
+        if (end < 0) {
+            return;
+        }
+        final long size = buf.getInt(end + 12) & 0xffffffffL;
+        int pos = (int) (end - size);
+        if (size > end || pos < 0) {
+            return;
+        }
+        while (pos + 46 <= end && buf.getInt(pos) == CENTRAL_DIRECTORY_HEADER) {
+            final int madeBy = (buf.getShort(pos + 4) & 0xffff) >> 8;
+            final int nameLength = buf.getShort(pos + 28) & 0xffff;
+            final int extraLength = buf.getShort(pos + 30) & 0xffff;
+            final int commentLength = buf.getShort(pos + 32) & 0xffff;
+            final int mode = (buf.getInt(pos + 38) >>> 16) & 0777;
+            if (pos + 46 + nameLength > end) {
+                return;
+            }
+            final String name = normalize(new String(tail, pos + 46, nameLength, StandardCharsets.UTF_8));
+            if (madeBy == MADE_BY_UNIX && mode != 0 && files.containsKey(name)) {
+                modes.put(name, mode);
+            }
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private static String normalize(String name) {
+        while (name.startsWith("./")) {
+            name = name.substring(2);
+        }
+        return name;
+    }
+
+    /** All files in the new archive, with their SHA-256, for the new manifest. */
+    public Map<String, String> getFiles() {
+        return Collections.unmodifiableMap(files);
+    }
+
+    /** Files added or changed, which are in the delta zip. */
+    public List<String> getChanged() {
+        return Collections.unmodifiableList(changed);
+    }
+
+    /** Files installed previously but no longer in the archive, which should be deleted. */
+    public List<String> getRemoved() {
+        return Collections.unmodifiableList(removed);
+    }
+
+    /** Unix permissions of the files in the new archive, where it records them; as the delta zip does not have them,
+     * they should be applied to the files once it is unzipped. */
+    public Map<String, Integer> getModes() {
+        return Collections.unmodifiableMap(modes);
+    }
+
+    /** Entries not installed because their names are absolute or go outside the work directory. */
+    public List<String> getSkipped() {
+        return Collections.unmodifiableList(skipped);
+    }
+
+    /** Keeps only the last bytes written, until told to keep all which follow. */
+    private static class TailOutputStream extends ByteArrayOutputStream {
+        private int limit;
+
+        TailOutputStream(int limit) {
+            this.limit = limit;
+        }
+
+        void keepAll() {
+            limit = 0;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            trim();
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            super.write(b);
+            trim();
+        }
+
+        private void trim() {
+            if (limit > 0 && count > 2 * limit) {
+                System.arraycopy(buf, count - limit, buf, 0, limit);
+                count = limit;
+            }
+        }
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -1,48 +1,397 @@
 package io.cloudsoft.terraform.infrastructure.commands;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.CommandResult;
+import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.PostRunBehaviour;
 
-import io.cloudsoft.terraform.infrastructure.TerraformParameters;
 import software.amazon.cloudformation.proxy.Logger;
 
 abstract public class RemoteDetachedTerraformProcess extends RemoteTerraformProcess {
+
+    // a wait on the server ends this long before the SSH command timeout, so there is time to read the results
+    private static final int WAIT_MARGIN_SECONDS = 5;
+    // before this long, a wait only ends for output once there is this much of it
+    private static final int WAIT_MIN_INTERVAL_SECONDS = 2;
+    private static final int WAIT_MIN_NEW_BYTES = 4096;
+
+    // in the work directory, the fingerprint of what init installed, as of the last init which succeeded
+    private static final String TF_INIT_FINGERPRINT = "cfn-init-fingerprint.txt";
+
+    // under the base directory, shared by all models; the dot means it cannot be taken for a model's work directory
+    private static final String TF_CACHE_DIR = ".cache";
     
     protected String stdoutLogFileName, stderrLogFileName;
     final protected TerraformCommand tfCommand;
+    protected long cacheMaxSizeMb = 0;
 
     public enum TerraformCommand {
         TF_INIT,
         TF_APPLY,
         TF_DESTROY,
+        // init then, if that succeeds, apply, in one process
+        TF_INIT_AND_APPLY;
+
+        /** The commands run, in order, by this one. */
+        public List<TerraformCommand> getStages() {
+            return this == TF_INIT_AND_APPLY ? Arrays.asList(TF_INIT, TF_APPLY) : Collections.singletonList(this);
+        }
     }
 
-    protected RemoteDetachedTerraformProcess(TerraformParameters params, Logger logger, TerraformCommand tc, String modelIdentifier, String commandIdentifier) {
-        super(params, logger, modelIdentifier, commandIdentifier);
+    protected RemoteDetachedTerraformProcess(SshToolbox ssh, Logger logger, TerraformCommand tc, String modelIdentifier, String commandIdentifier) {
+        super(ssh, logger, modelIdentifier, commandIdentifier);
         tfCommand = tc;
     }
 
     public String getCommandName() {
         return tfCommand.toString();
     }
+
+    /** Sets the size above which the provider and module cache shared by all models on the server is pruned, least
+     * recently used first; 0 (the default) means init does not use the cache. */
+    public void setCacheMaxSizeMb(long cacheMaxSizeMb) {
+        this.cacheMaxSizeMb = cacheMaxSizeMb;
+    }
+
+    protected boolean isMultiStage() {
+        return tfCommand.getStages().size() > 1;
+    }
+
+    /** Name of a file for the given stage (or for the process as a whole, if given the process's own command),
+     * with the given suffix, eg <code>stdout.log</code>; the files for a stage are named as if it were run alone. */
+    abstract protected String getStageFileName(TerraformCommand stage, String trailer);
+
+    /** Commands whose output is logged separately: the stages, and for a multi-stage process also the process
+     * as a whole (whose logs have anything written by the script around the stages). */
+    public List<TerraformCommand> getLogStages() {
+        final List<TerraformCommand> result = new ArrayList<>(tfCommand.getStages());
+        if (isMultiStage()) {
+            result.add(tfCommand);
+        }
+        return result;
+    }
+
+    protected String getStdoutLogFileName(TerraformCommand stage) {
+        return stage == tfCommand ? stdoutLogFileName : getStageFileName(stage, "stdout.log");
+    }
+
+    protected String getStderrLogFileName(TerraformCommand stage) {
+        return stage == tfCommand ? stderrLogFileName : getStageFileName(stage, "stderr.log");
+    }
+
+    protected String getStageExitStatusFileName(TerraformCommand stage) {
+        return getStageFileName(stage, "exitstatus.log");
+    }
+
+    /** Commands to prepare the logs of every stage to be read incrementally. */
+    protected List<String> setupIncrementalLogsCommands() {
+        final List<String> result = new ArrayList<>();
+        for (TerraformCommand stage : getLogStages()) {
+            result.add(ssh.setupIncrementalFileCommand(getStdoutLogFileName(stage)));
+            result.add(ssh.setupIncrementalFileCommand(getStderrLogFileName(stage)));
+        }
+        return result;
+    }
+
+    /** Script, run in the work directory, which runs each stage with its output sent to the stage's logs
+     * and its exit status written to the stage's exit status file, stopping at (and exiting with the status of)
+     * the first which fails. */
+    protected String getStagesScript() {
+        final List<String> lines = new ArrayList<>();
+        for (TerraformCommand stage : tfCommand.getStages()) {
+            final String command = stage == TerraformCommand.TF_INIT ? getInitIfChangedCommand() : getTerraformCommand(stage);
+            lines.add(String.format("%s >%s 2>%s", command, getStdoutLogFileName(stage), getStderrLogFileName(stage)));
+            lines.add("rc=$?");
+            lines.add(String.format("echo $rc > %s", getStageExitStatusFileName(stage)));
+            lines.add("[ $rc -eq 0 ] || exit $rc");
+        }
+        lines.add("exit 0");
+        return String.join("\n", lines);
+    }
     
-    public String getFullStdout() throws IOException {
-        return ssh.catFileIfExists(stdoutLogFileName);
+    /** Runs init unless it has already been run, successfully, for the same providers and modules; see
+     * {@link #getInitFingerprintCommand()}. The fingerprint is recorded after init, as init may write the lock file. */
+    protected String getInitIfChangedCommand() {
+        final List<String> lines = new ArrayList<>();
+        lines.add(String.format("if [ -d .terraform ] && [ \"`%s`\" = \"`cat %s 2>/dev/null`\" ]; then", getInitFingerprintCommand(), TF_INIT_FINGERPRINT));
+        lines.add("  echo 'Providers, modules and backend unchanged since the last init; not running init again'");
+        lines.add("else");
+        if (cacheMaxSizeMb > 0) {
+            lines.add("  " + getCachedInitCommand().replace("\n", "\n  ") + " \\");
+            lines.add(String.format("    && { %s > %s.tmp && mv -f %s.tmp %s ; }",
+                getInitFingerprintCommand(), TF_INIT_FINGERPRINT, TF_INIT_FINGERPRINT, TF_INIT_FINGERPRINT));
+        } else {
+            lines.add(String.format("  %s && { %s > %s.tmp && mv -f %s.tmp %s ; }",
+                getTerraformCommand(TerraformCommand.TF_INIT), getInitFingerprintCommand(), TF_INIT_FINGERPRINT, TF_INIT_FINGERPRINT, TF_INIT_FINGERPRINT));
+        }
+        lines.add("fi");
+        return String.join("\n", lines);
+    }
+
+    /** Prints a hash of what determines what init installs: the lock file, and the <code>source</code> and
+     * <code>version</code> settings (of providers and modules) and backend types in the configuration's
+     * <code>.tf</code> files. A change to any of these (or some other setting of the same name) means init is run again. */
+    protected String getInitFingerprintCommand() {
+        return "{ cat .terraform.lock.hcl 2>/dev/null ; " + getSourcesCommand("|backend[[:space:]]*\"[^\"]*\"") + " ; } "
+            + "| sha256sum | cut -c1-64";
+    }
+
+    /** Prints a hash of the <code>source</code> and <code>version</code> settings, which determine the modules
+     * init installs, and so under which name they are cached. */
+    protected String getModulesFingerprintCommand() {
+        return getSourcesCommand("") + " | sha256sum | cut -c1-64";
     }
 
-    public String getFullStderr() throws IOException {
-        return ssh.catFileIfExists(stderrLogFileName);
+    private String getSourcesCommand(String otherPatterns) {
+        return "find . -name '*.tf' -not -path './.terraform/*' -exec grep -hoE "
+            + "'(source|version)[[:space:]]*=[[:space:]]*\"[^\"]*\"" + otherPatterns + "' {} + 2>/dev/null | tr -d ' \\t' | sort";
     }
 
-    public String getIncrementalStdout() throws IOException {
-        return ssh.catIncrementalFileIfExists(stdoutLogFileName);
+    /** The cache, as a path the shell expands wherever it is used (a tilde is only expanded at the start of a word). */
+    protected String getCacheDir() {
+        return getBaseDir().replaceFirst("^~", "\\$HOME") + "/" + TF_CACHE_DIR;
     }
 
-    public String getIncrementalStderr() throws IOException {
-        return ssh.catIncrementalFileIfExists(stderrLogFileName);
+    /** Init using the cache shared by all models on the server, holding its lock, so inits of different models
+     * do not write the same files at once (which Terraform does not support):
+     * <ul>
+     * <li>providers are installed through <code>TF_PLUGIN_CACHE_DIR</code>, so each version is downloaded once;
+     *     Terraform links them from the cache, and those links are replaced by hard links (or copies), so the work
+     *     directory does not depend on the cache and pruning the cache does not break it
+     * <li>Terraform has no cache of modules, so the installed modules are kept, named by the fingerprint of the
+     *     module sources and versions, and copied into a work directory which has none before init runs, in which case
+     *     init finds them already installed and does not download them
+     * <li>the cache is then pruned to its maximum size, removing the entries (a provider version for one platform,
+     *     or a set of modules) used least recently
+     * </ul>
+     * Exits with the status of init. */
+    protected String getCachedInitCommand() {
+        final String cache = getCacheDir();
+        return String.join("\n",
+            String.format("mkdir -p %1$s/plugins %1$s/modules && (", cache),
+            "  if command -v flock >/dev/null 2>&1; then flock -x 9; fi",
+            String.format("  export TF_PLUGIN_CACHE_DIR=%s/plugins", cache),
+            String.format("  modules=%s/modules/`%s`", cache, getModulesFingerprintCommand()),
+            "  if [ ! -d .terraform/modules ] && [ -d $modules ]; then",
+            "    echo \"Using cached modules\" ; mkdir -p .terraform && cp -a $modules .terraform/modules && touch $modules",
+            "  fi",
+            "  " + getTerraformCommand(TerraformCommand.TF_INIT) + " || exit $?",
+            "  find .terraform/providers -type l 2>/dev/null | while IFS= read -r link; do",
+            "    target=`readlink -f \"$link\"` && rm -f \"$link\" && { cp -al \"$target\" \"$link\" || cp -a \"$target\" \"$link\" ; } && touch \"$target\"",
+            "  done",
+            "  if [ -d .terraform/modules ]; then",
+            "    [ -d $modules ] || cp -a .terraform/modules $modules",
+            "    touch $modules",
+            "  fi",
+            String.format("  while [ `du -sk %s | cut -f1` -gt %d ]; do", cache, cacheMaxSizeMb * 1024),
+            String.format("    oldest=`ls -dtr %1$s/plugins/*/*/*/*/* %1$s/modules/* 2>/dev/null | head -1`", cache),
+            "    [ -n \"$oldest\" ] || break",
+            "    echo \"Removing least recently used $oldest from the cache\" ; rm -rf \"$oldest\"",
+            "  done",
+            "  exit 0",
+            String.format(") 9>>%s/lock", cache));
     }
 
+    /** The last bytes (up to the given number) of the stdout and stderr logs of the given stage (or of the process
+     * as a whole), as the stdout and stderr of the result, fetched in one exec; the whole logs will have been read
+     * incrementally by {@link #probe()}. */
+    public CommandResult getOutputTail(TerraformCommand stage, int maxBytes) throws IOException {
+        return ssh.runSSHCommand(String.format("[ -f %1$s ] && tail -c %3$d %1$s; [ -f %2$s ] && tail -c %3$d %2$s >&2; :",
+            getStdoutLogFileName(stage), getStderrLogFileName(stage), maxBytes),
+            PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
+    }
+
+    /** State of the process and its new log output, as observed by a single {@link #probe()}. */
+    public static class ProbeResult {
+        private final boolean running, failure;
+        private final String errorString;
+        private Map<TerraformCommand, String> incrementalStdout = Collections.emptyMap(), incrementalStderr = Collections.emptyMap();
+        private TerraformCommand failedStage;
+
+        protected ProbeResult(boolean running, boolean failure, String errorString) {
+            this.running = running;
+            this.failure = failure;
+            this.errorString = errorString;
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+
+        /** as per {@link RemoteDetachedTerraformProcess#wasFailure()}; only meaningful if not {@link #isRunning()} */
+        public boolean isFailure() {
+            return failure;
+        }
+
+        /** as per {@link RemoteDetachedTerraformProcess#getErrorString()} */
+        public String getErrorString() {
+            return errorString;
+        }
+
+        /** New stdout of the given stage (or of the process as a whole); see {@link RemoteDetachedTerraformProcess#getLogStages()} */
+        public String getIncrementalStdout(TerraformCommand stage) {
+            return incrementalStdout.getOrDefault(stage, "");
+        }
+
+        /** New stderr of the given stage (or of the process as a whole) */
+        public String getIncrementalStderr(TerraformCommand stage) {
+            return incrementalStderr.getOrDefault(stage, "");
+        }
+
+        /** The stage which failed, if the process failed; for a process with a single stage, its command */
+        public TerraformCommand getFailedStage() {
+            return failedStage;
+        }
+    }
+
+    /** Combines {@link #isRunning()}, {@link #wasFailure()}, {@link #getErrorString()} and reading the new output
+     * of every log (see {@link ProbeResult#getIncrementalStdout(TerraformCommand)}) in one exec.
+     * The state is established before the logs are read, so if the process is reported as finished
+     * the increments include all its output. */
+    public ProbeResult probe() throws IOException {
+        return probe(null);
+    }
+
+    /** The probe, preceded in the same exec by the given command if not null. For a multi-stage process the exit
+     * statuses of the stages are also read, to tell which failed, and the logs of each are read separately. */
+    private ProbeResult probe(String before) throws IOException {
+        final SshToolbox.Batch batch = ssh.batch();
+        if (before != null) {
+            batch.add(before, PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
+        }
+        batch.add(getProbeStateCommand(), PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
+        batch.add(getStageStatusCommand(), PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
+        for (TerraformCommand stage : getLogStages()) {
+            batch.add(ssh.catIncrementalFileCommand(getStdoutLogFileName(stage)), PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
+            batch.add(ssh.catIncrementalFileCommand(getStderrLogFileName(stage)), PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
+        }
+        final List<CommandResult> results = batch.run();
+
+        int i = before == null ? 0 : 1;
+        final ProbeResult result = newProbeResult(results.get(i++));
+        final String stageStatuses = results.get(i++).getStdout();
+        result.incrementalStdout = new LinkedHashMap<>();
+        result.incrementalStderr = new LinkedHashMap<>();
+        for (TerraformCommand stage : getLogStages()) {
+            result.incrementalStdout.put(stage, results.get(i++).getStdout());
+            result.incrementalStderr.put(stage, results.get(i++).getStdout());
+        }
+        if (!result.isRunning() && result.isFailure()) {
+            result.failedStage = isMultiStage() ? parseFailedStage(stageStatuses) : tfCommand;
+        }
+        return result;
+    }
+
+    /** Prints the name and exit status of each stage of a multi-stage process which has finished, one per line. */
+    String getStageStatusCommand() {
+        if (!isMultiStage()) {
+            return ":";
+        }
+        final List<String> commands = new ArrayList<>();
+        for (TerraformCommand stage : tfCommand.getStages()) {
+            commands.add(String.format("[ -f %s ] && echo %s `cat %s`", getStageExitStatusFileName(stage), stage, getStageExitStatusFileName(stage)));
+        }
+        commands.add(":");
+        return String.join("; ", commands);
+    }
+
+    /** The first stage which failed or, if none did, the first which did not finish (eg because it was killed). */
+    TerraformCommand parseFailedStage(String stageStatuses) {
+        final Map<String, String> statuses = new LinkedHashMap<>();
+        for (String line : stageStatuses.split("\n")) {
+            final String[] parts = line.trim().split("\\s+");
+            if (parts.length == 2) {
+                statuses.put(parts[0], parts[1]);
+            }
+        }
+        for (TerraformCommand stage : tfCommand.getStages()) {
+            final String status = statuses.get(stage.toString());
+            if (status == null || !status.equals("0")) {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    /** As {@link #probe()}, but first waits on the server, for up to the given time (less if the SSH command timeout
+     * is shorter), until the process ends or writes more output. The end is then noticed as soon as it happens, and
+     * output once there is enough of it to be worth a round trip (see {@link #getWaitCommand(long)}), rather than
+     * at the next poll; while neither happens no requests are made. */
+    public ProbeResult waitAndProbe(long maxWaitSeconds) throws IOException {
+        final long waitSeconds = getWaitSeconds(maxWaitSeconds);
+        if (waitSeconds <= 0) {
+            return probe();
+        }
+        return probe(getWaitCommand(waitSeconds));
+    }
+
+    /** How long {@link #waitAndProbe(long)} would wait, given the most it may; 0 if it would not wait at all. */
+    public long getWaitSeconds(long maxWaitSeconds) {
+        return Math.max(0, Math.min(maxWaitSeconds, ssh.getCommandTimeoutSeconds() - WAIT_MARGIN_SECONDS));
+    }
+
+    /** Files whose changes {@link #getWaitCommand(long)} watches: the logs and exit status files of the stages. */
+    protected List<String> getWaitWatchedFileNames() {
+        final List<String> result = new ArrayList<>();
+        for (TerraformCommand stage : getLogStages()) {
+            result.add(getStdoutLogFileName(stage));
+            result.add(getStderrLogFileName(stage));
+        }
+        if (isMultiStage()) {
+            for (TerraformCommand stage : tfCommand.getStages()) {
+                result.add(getStageExitStatusFileName(stage));
+            }
+        }
+        return result;
+    }
+
+    /** Command which returns once the process is no longer running, the timeout has passed, or the watched files
+     * (see {@link #getWaitWatchedFileNames()}) have grown by at least {@value #WAIT_MIN_NEW_BYTES} bytes, or by
+     * anything once {@value #WAIT_MIN_INTERVAL_SECONDS} seconds have passed, so a trickle of output does not
+     * end each wait almost as soon as it starts. Where <code>inotifywait</code> is installed it sleeps until one
+     * of the files which exist is written, checking the process at least every second; otherwise, and while
+     * holding back output which is not yet enough, it polls a few times a second. */
+    protected String getWaitCommand(long timeoutSeconds) {
+        final String files = String.join(" ", getWaitWatchedFileNames());
+        return String.join("\n",
+            "__cfn_wait_now=`date +%s`",
+            String.format("__cfn_wait_end=$(( __cfn_wait_now + %d ))", timeoutSeconds),
+            String.format("__cfn_wait_ready=$(( __cfn_wait_now + %d ))", WAIT_MIN_INTERVAL_SECONDS),
+            String.format("__cfn_wait_size() { __cfn_wait_s=`wc -c %s 2>/dev/null | tail -n 1 | awk '{print $1}'` ; echo ${__cfn_wait_s:-0} ; }", files),
+            "__cfn_wait_start=`__cfn_wait_size`",
+            "while " + getRunningTestCommand() + " && [ `date +%s` -lt $__cfn_wait_end ]; do",
+            "  __cfn_wait_new=$(( `__cfn_wait_size` - __cfn_wait_start ))",
+            String.format("  [ $__cfn_wait_new -ge %d ] && break", WAIT_MIN_NEW_BYTES),
+            "  [ $__cfn_wait_new -ne 0 ] && [ `date +%s` -ge $__cfn_wait_ready ] && break",
+            String.format("  __cfn_wait_files=`ls %s 2>/dev/null`", files),
+            "  if [ $__cfn_wait_new -eq 0 ] && [ -n \"$__cfn_wait_files\" ] && command -v inotifywait >/dev/null 2>&1; then",
+            "    inotifywait -qq -t 1 -e modify -e close_write $__cfn_wait_files >/dev/null 2>&1",
+            "  else",
+            "    sleep 0.2 2>/dev/null || sleep 1",
+            "  fi",
+            "done");
+    }
+
+    /** shell command which succeeds if, and only if, the process is running */
+    abstract protected String getRunningTestCommand();
+
+    /** command whose output is enough to determine whether the process is running and, if not, whether it failed */
+    abstract protected String getProbeStateCommand();
+    abstract protected ProbeResult newProbeResult(CommandResult stateResult);
+
+    /** The Terraform command line for a single-stage process. */
     protected String getTerraformCommand() {
-        switch (tfCommand) {
+        return getTerraformCommand(tfCommand);
+    }
+
+    protected String getTerraformCommand(TerraformCommand stage) {
+        switch (stage) {
             case TF_INIT:
                 return "terraform init -lock=true -no-color -input=false";
             case TF_APPLY:
@@ -50,7 +399,7 @@ abstract public class RemoteDetachedTerraformProcess extends RemoteTerraformProc
             case TF_DESTROY:
                 return "terraform destroy -lock=true -no-color -auto-approve";
             default:
-                throw new IllegalArgumentException("Unknown command " + tfCommand.toString());
+                throw new IllegalArgumentException("Not a single Terraform command: " + stage.toString());
         }
     }
 
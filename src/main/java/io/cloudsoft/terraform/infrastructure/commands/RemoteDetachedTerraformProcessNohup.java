@@ -1,9 +1,11 @@
 package io.cloudsoft.terraform.infrastructure.commands;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import io.cloudsoft.terraform.infrastructure.TerraformBaseWorker;
-import io.cloudsoft.terraform.infrastructure.TerraformParameters;
+import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.CommandResult;
 import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.PostRunBehaviour;
 import software.amazon.cloudformation.proxy.Logger;
 
@@ -12,11 +14,11 @@ public class RemoteDetachedTerraformProcessNohup extends RemoteDetachedTerraform
     protected final String exitstatusFileName;
     
     public static RemoteDetachedTerraformProcessNohup of(TerraformBaseWorker<?> w, TerraformCommand command) {
-        return new RemoteDetachedTerraformProcessNohup(w.getParameters(), w.getLogger(), command, w.getModel().getIdentifier(), w.getCallbackContext().getCommandRequestId());
+        return new RemoteDetachedTerraformProcessNohup(w.getSshToolbox(), w.getLogger(), command, w.getModel().getIdentifier(), w.getCallbackContext().getCommandRequestId());
     }
 
-    public RemoteDetachedTerraformProcessNohup(TerraformParameters parameters, Logger logger, TerraformCommand tc, String modelIdentifier, String commandIdentifier) {
-        super(parameters, logger, tc, modelIdentifier, commandIdentifier);
+    public RemoteDetachedTerraformProcessNohup(SshToolbox ssh, Logger logger, TerraformCommand tc, String modelIdentifier, String commandIdentifier) {
+        super(ssh, logger, tc, modelIdentifier, commandIdentifier);
         stdoutLogFileName = getFileName(true, "stdout.log");
         stderrLogFileName = getFileName(true, "stderr.log");
         exitstatusFileName = getFileName(true, "exitstatus.log");
@@ -24,13 +26,25 @@ public class RemoteDetachedTerraformProcessNohup extends RemoteDetachedTerraform
     }
     
     private String getFileName(boolean isAbsolute, String trailer) {
+        return getFileName(isAbsolute, tfCommand, trailer);
+    }
+
+    private String getFileName(boolean isAbsolute, TerraformCommand stage, String trailer) {
         return (isAbsolute ? getWorkDir()+"/" : "") + 
-            String.format("terraform-%s-%s-", commandIdentifier, getCommandName().toLowerCase()) +
+            String.format("terraform-%s-%s-", commandIdentifier, stage.toString().toLowerCase()) +
             trailer;
     }
 
+    @Override
+    protected String getStageFileName(TerraformCommand stage, String trailer) {
+        return getFileName(true, stage, trailer);
+    }
+
     public boolean wasFailure() { 
-        String err = getErrorString();
+        return isFailureExitStatus(getErrorString());
+    }
+
+    private boolean isFailureExitStatus(String err) {
         if (err==null || err.trim().length()==0) {
             // still running
             return false;
@@ -50,9 +64,17 @@ public class RemoteDetachedTerraformProcessNohup extends RemoteDetachedTerraform
         }
     }
 
+    private String isRunningCommand() {
+        return String.format("if ! cat %s >/dev/null; then echo 'failed to cat the pidfile'; elif [ -f /proc/`cat %s`/environ ]; then echo true; else echo false; fi", pidFileName, pidFileName);
+    }
+
     public boolean isRunning() throws IOException {
-        ssh.runSSHCommand(String.format("if ! cat %s >/dev/null; then echo 'failed to cat the pidfile'; elif [ -f /proc/`cat %s`/environ ]; then echo true; else echo false; fi", pidFileName, pidFileName), PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
-        String out = ssh.lastStdout.trim();
+        ssh.runSSHCommand(isRunningCommand(), PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
+        return parseIsRunning(ssh.lastStdout);
+    }
+
+    private boolean parseIsRunning(String isRunningOutput) {
+        String out = isRunningOutput.trim();
         if (out.equals("true")) {
             return true;
         } else if (out.equals("false")) {
@@ -62,20 +84,45 @@ public class RemoteDetachedTerraformProcessNohup extends RemoteDetachedTerraform
         }
     }
 
+    @Override
+    protected String getRunningTestCommand() {
+        return String.format("[ -f /proc/`cat %s 2>/dev/null`/environ ]", pidFileName);
+    }
+
+    @Override
+    protected List<String> getWaitWatchedFileNames() {
+        final List<String> result = super.getWaitWatchedFileNames();
+        result.add(exitstatusFileName);
+        return result;
+    }
+
+    @Override
+    protected String getProbeStateCommand() {
+        // the exit status is written by the script just before the process ends, so if it is not running it is there
+        return isRunningCommand() + String.format("; [ -f %s ] && cat %s; :", exitstatusFileName, exitstatusFileName);
+    }
+
+    @Override
+    protected ProbeResult newProbeResult(CommandResult stateResult) {
+        final String[] lines = stateResult.getStdout().split("\n", 2);
+        final boolean running = parseIsRunning(lines[0]);
+        final String exitStatus = lines.length > 1 ? lines[1] : "";
+        return new ProbeResult(running, !running && isFailureExitStatus(exitStatus), exitStatus);
+    }
+
     public void start() throws IOException {
         String scriptName = "./"+getFileName(false, "script.sh");
-        String fullCmd = String.join("\n", 
-            "cd "+getWorkDir(),
-            ssh.setupIncrementalFileCommand(stdoutLogFileName),
-            ssh.setupIncrementalFileCommand(stderrLogFileName),
-            "cat > "+scriptName+" << EOF",
-            getTerraformCommand(),
-            "echo \\$? > "+exitstatusFileName,
-            "EOF",
-            "chmod +x "+scriptName,
-            String.format("nohup %s </dev/null >%s 2>%s & echo $! >%s", scriptName, stdoutLogFileName, stderrLogFileName, pidFileName)
-            );
-        ssh.runSSHCommand(fullCmd, PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
+        final List<String> commands = new ArrayList<>();
+        commands.add("cd "+getWorkDir());
+        commands.addAll(setupIncrementalLogsCommands());
+        commands.add("cat > "+scriptName+" << 'EOF'");
+        // the stages of a multi-stage command are run in a subshell, as they exit on failure
+        commands.add(isMultiStage() ? "(\n" + getStagesScript() + "\n)" : getTerraformCommand());
+        commands.add("echo $? > "+exitstatusFileName);
+        commands.add("EOF");
+        commands.add("chmod +x "+scriptName);
+        commands.add(String.format("nohup %s </dev/null >%s 2>%s & echo $! >%s", scriptName, stdoutLogFileName, stderrLogFileName, pidFileName));
+        ssh.runSSHCommand(String.join("\n", commands), PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
     }
     
     @Override
@@ -1,22 +1,24 @@
 package io.cloudsoft.terraform.infrastructure.commands;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import io.cloudsoft.terraform.infrastructure.TerraformBaseWorker;
-import io.cloudsoft.terraform.infrastructure.TerraformParameters;
+import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.CommandResult;
 import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.PostRunBehaviour;
 import software.amazon.cloudformation.proxy.Logger;
 
 public class RemoteDetachedTerraformProcessSystemd extends RemoteDetachedTerraformProcess {
 
     public static RemoteDetachedTerraformProcessSystemd of(TerraformBaseWorker<?> w, TerraformCommand tc) {
-        return new RemoteDetachedTerraformProcessSystemd(w.getParameters(), w.getLogger(), tc, w.getModel().getIdentifier(), w.getCallbackContext().getCommandRequestId());
+        return new RemoteDetachedTerraformProcessSystemd(w.getSshToolbox(), w.getLogger(), tc, w.getModel().getIdentifier(), w.getCallbackContext().getCommandRequestId());
     }
 
-    protected RemoteDetachedTerraformProcessSystemd(TerraformParameters params, Logger logger, TerraformCommand tc, String modelIdentifier, String commandIdentifier) {
-        super(params, logger, tc, modelIdentifier, commandIdentifier);
+    protected RemoteDetachedTerraformProcessSystemd(SshToolbox ssh, Logger logger, TerraformCommand tc, String modelIdentifier, String commandIdentifier) {
+        super(ssh, logger, tc, modelIdentifier, commandIdentifier);
         stdoutLogFileName = String.format("%s/%s-stdout.log", getLogDir(), getUnitPrefix());
         stderrLogFileName = String.format("%s/%s-stderr.log", getLogDir(), getUnitPrefix());
     }
@@ -26,7 +28,16 @@ public class RemoteDetachedTerraformProcessSystemd extends RemoteDetachedTerrafo
     }
     
     private String getUnitPrefix() {
-        return "terraform-"+modelIdentifier+"-"+commandIdentifier+"-"+getCommandName().toLowerCase();
+        return getUnitPrefix(tfCommand);
+    }
+
+    private String getUnitPrefix(TerraformCommand stage) {
+        return "terraform-"+modelIdentifier+"-"+commandIdentifier+"-"+stage.toString().toLowerCase();
+    }
+
+    @Override
+    protected String getStageFileName(TerraformCommand stage, String trailer) {
+        return String.format("%s/%s-%s", getLogDir(), getUnitPrefix(stage), trailer);
     }
 
     private String getUnitFullName() {
@@ -40,10 +51,18 @@ public class RemoteDetachedTerraformProcessSystemd extends RemoteDetachedTerrafo
     }
 
     public void start() throws IOException {
-        final List<String> commands = Arrays.asList(
-                ssh.setupIncrementalFileCommand(stdoutLogFileName),
-                ssh.setupIncrementalFileCommand(stderrLogFileName),
-                "loginctl enable-linger",
+        final List<String> commands = new ArrayList<>(setupIncrementalLogsCommands());
+        final String command;
+        if (isMultiStage()) {
+            // the stages are run by a script, which sends each stage's output to its own logs
+            final String scriptName = getStageFileName(tfCommand, "script.sh");
+            commands.add("cat > "+scriptName+" << 'EOF'\n"+getStagesScript()+"\nEOF");
+            command = "/bin/sh "+scriptName;
+        } else {
+            command = getTerraformCommand();
+        }
+        commands.add("loginctl enable-linger");
+        commands.add(
                 String.format("systemd-run"
                     + " --unit="+getUnitPrefix()
                     + " --user"
@@ -52,7 +71,7 @@ public class RemoteDetachedTerraformProcessSystemd extends RemoteDetachedTerrafo
                     + " -p StandardOutput=file:"+stdoutLogFileName
                     + " -p StandardError=file:"+stderrLogFileName
                     // indirection through `env` solves potential issue where cmd wants absolue path
-                    + " /usr/bin/env " + getTerraformCommand()
+                    + " /usr/bin/env " + command
                     
                     // note: could use -t and redirects, but better if we don't need them, and -p seems to work!
 //                    + " -t"
@@ -60,7 +79,7 @@ public class RemoteDetachedTerraformProcessSystemd extends RemoteDetachedTerrafo
                     
                     )
         );
-        ssh.runSSHCommand(String.join("; ", commands), PostRunBehaviour.FAIL, 
+        ssh.runSSHCommand(String.join("\n", commands), PostRunBehaviour.FAIL, 
             PostRunBehaviour.IGNORE /* prints the unit prefix */ );
     }
 
@@ -91,6 +110,31 @@ public class RemoteDetachedTerraformProcessSystemd extends RemoteDetachedTerrafo
         return String.format("result %s (%s)", getResult(), getMainExitCode());
     }
     
+    @Override
+    protected String getRunningTestCommand() {
+        return String.format("systemctl --user show --property SubState %s | grep -qx SubState=running", getUnitFullName());
+    }
+
+    @Override
+    protected String getProbeStateCommand() {
+        return String.format("systemctl --user show --property SubState --property Result --property ExecMainCode %s",
+            getUnitFullName());
+    }
+
+    @Override
+    protected ProbeResult newProbeResult(CommandResult stateResult) {
+        final Map<String,String> properties = new HashMap<>();
+        for (String line : stateResult.getStdout().split("\n")) {
+            final int eq = line.indexOf('=');
+            if (eq > 0) {
+                properties.put(line.substring(0, eq), line.substring(eq + 1).trim());
+            }
+        }
+        final String result = properties.getOrDefault("Result", "");
+        return new ProbeResult("running".equals(properties.get("SubState")), !"success".equals(result),
+            String.format("result %s (%s)", result, properties.getOrDefault("ExecMainCode", "")));
+    }
+
     @Override
     public void cleanup() throws IOException {
         // stop every run from polluting the user systemctl history
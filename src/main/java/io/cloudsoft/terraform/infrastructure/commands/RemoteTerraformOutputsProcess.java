@@ -3,11 +3,13 @@ package io.cloudsoft.terraform.infrastructure.commands;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.cloudsoft.terraform.infrastructure.TerraformBaseWorker;
-import io.cloudsoft.terraform.infrastructure.TerraformParameters;
 import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.PostRunBehaviour;
+import org.apache.commons.io.output.NullOutputStream;
 import software.amazon.cloudformation.proxy.Logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 public class RemoteTerraformOutputsProcess extends RemoteTerraformProcess {
@@ -16,18 +18,20 @@ public class RemoteTerraformOutputsProcess extends RemoteTerraformProcess {
     private String outputJsonStringized = null;
 
     public static RemoteTerraformOutputsProcess of(TerraformBaseWorker<?> w) {
-        return new RemoteTerraformOutputsProcess(w.getParameters(), w.getLogger(), w.getModel().getIdentifier(), w.getCallbackContext().getCommandRequestId());
+        return new RemoteTerraformOutputsProcess(w.getSshToolbox(), w.getLogger(), w.getModel().getIdentifier(), w.getCallbackContext().getCommandRequestId());
     }
 
-    protected RemoteTerraformOutputsProcess(TerraformParameters params, Logger logger, String modelIdentifier, String commandIdentifier) {
-        super(params, logger, modelIdentifier, commandIdentifier);
+    protected RemoteTerraformOutputsProcess(SshToolbox ssh, Logger logger, String modelIdentifier, String commandIdentifier) {
+        super(ssh, logger, modelIdentifier, commandIdentifier);
         this.objectMapper = new ObjectMapper();
     }
 
     public void run() throws IOException {
-        ssh.runSSHCommand(String.format("cd %s && terraform output -json", getWorkDir()), PostRunBehaviour.FAIL, PostRunBehaviour.FAIL);
-        outputJsonStringized = ssh.lastStdout;
-        logger.log("Outputs from TF: '" + outputJsonStringized + "'");
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ssh.runSSHCommandStreaming(String.format("cd %s && terraform output -json", getWorkDir()),
+            stdout, NullOutputStream.NULL_OUTPUT_STREAM, ssh.getCommandTimeoutSeconds(), PostRunBehaviour.FAIL, PostRunBehaviour.FAIL);
+        outputJsonStringized = new String(stdout.toByteArray(), StandardCharsets.UTF_8);
+        logger.log("Outputs from TF: '" + BoundedOutputCapture.summarize(outputJsonStringized) + "'");
         if (outputJsonStringized == null || outputJsonStringized.isEmpty()) {
             outputJsonStringized = "{}";
         }
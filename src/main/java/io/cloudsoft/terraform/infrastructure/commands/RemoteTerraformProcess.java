@@ -1,14 +1,27 @@
 package io.cloudsoft.terraform.infrastructure.commands;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.commons.lang3.RandomStringUtils;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.cloudsoft.terraform.infrastructure.ConfigurationSource;
+import io.cloudsoft.terraform.infrastructure.ConnectorHandlerFailures;
 import io.cloudsoft.terraform.infrastructure.TerraformBaseWorker;
-import io.cloudsoft.terraform.infrastructure.TerraformParameters;
+import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.CommandResult;
 import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.PostRunBehaviour;
 import software.amazon.cloudformation.proxy.Logger;
 
@@ -19,17 +32,17 @@ public class RemoteTerraformProcess {
     
     // TF_DATADIR must match the contents of the files in server-side-systemd/
     // (at least as far as realpath(1) is concerned).
-    // sshj does not expand tilde to the remote user's home directory on the server
-    // (OpenSSH scp does that). Also neither any directory components nor the
-    // file name can be quoted (as in "/some/'work dir'/otherdir") because sshj
-    // fails to escape the quotes properly (again, works in OpenSSH).
+    // Files are uploaded by piping them to a command's stdin rather than with SCP or SFTP,
+    // so the remote shell expands the tilde here and in the other paths used below.
     
     private static final String
         TF_DATADIR = "~/tfdata",
-        TF_SCPDIR = "/tmp",
         TF_CFN_METADATA_JSON = "cfn-metadata.json",
+        TF_MANIFEST = "cfn-manifest.txt",
         TF_CONFFILENAME = "configuration.tf";
 
+    private static final int EXIT_CODE_UNKNOWN_MIME_TYPE = 99;
+
     /** This should be the same for all runs against a particular TF deployment managed by CFN,
      * ie across all commands. */
     protected final String modelIdentifier;
@@ -42,12 +55,12 @@ public class RemoteTerraformProcess {
     protected final Logger logger;
 
     public static RemoteTerraformProcess of(TerraformBaseWorker<?> w) {
-        return new RemoteTerraformProcess(w.getParameters(), w.getLogger(), w.getModel().getIdentifier(), w.getCallbackContext().getCommandRequestId());
+        return new RemoteTerraformProcess(w.getSshToolbox(), w.getLogger(), w.getModel().getIdentifier(), w.getCallbackContext().getCommandRequestId());
     }
 
-    protected RemoteTerraformProcess(TerraformParameters params, Logger logger, String modelIdentifier, String commandIdentifier) {
+    protected RemoteTerraformProcess(SshToolbox ssh, Logger logger, String modelIdentifier, String commandIdentifier) {
         this.logger = logger;
-        ssh = new SshToolbox(params, logger);
+        this.ssh = ssh;
         this.modelIdentifier = modelIdentifier;
         this.commandIdentifier = commandIdentifier;
     }
@@ -69,55 +82,241 @@ public class RemoteTerraformProcess {
         ssh.rmdir(getWorkDir());
     }
     
-    private String getScpTmpDir() {
-        return TF_SCPDIR + "/" + modelIdentifier;
-    }
-
-    public void uploadConfiguration(byte[] contents, Map<String, Object> vars_map, boolean firstTime) throws IOException, IllegalArgumentException {
-        ssh.mkdir(getScpTmpDir());
-        
-        String tmpFileBasename = "terraform-upload-"+commandIdentifier+"-"+RandomStringUtils.randomAlphanumeric(4)+".file";
-        ssh.uploadFile(getScpTmpDir(), tmpFileBasename, contents);
-        final String tmpFilename = getScpTmpDir() + "/" + tmpFileBasename;
-        ssh.runSSHCommand("file  --brief --mime-type " + tmpFilename, PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
-        final String mimeType = ssh.lastStdout.trim();
-        switch (mimeType) {
-            case "text/plain":
-                ssh.runSSHCommand(String.format("mv %s %s/%s", tmpFilename, getWorkDir(), TF_CONFFILENAME), PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
-                break;
-            case "application/zip":
-                ssh.runSSHCommand(String.format("unzip %s -d %s", tmpFilename, getWorkDir()), PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
-                break;
-            default:
-                ssh.rmdir(getScpTmpDir());
-                throw new IllegalArgumentException("Unknown MIME type " + mimeType);
+    /** Uploads the configuration (a single <code>.tf</code> file or a zip of them) straight into the work directory,
+     * streaming it from the source to a temporary file there, then (once the source has been
+     * {@link ConfigurationSource#verify(String) verified} against the checksum of what the server received)
+     * installing it, along with the variables file if any. If the transfer fails part way the
+     * partial file is never installed.
+     * <p>
+     * On updates the {@link ConfigurationManifest manifest} of what was installed last time is consulted first,
+     * and its fingerprint given to the opener so that a source supporting conditional requests need not send anything:
+     * if the source's fingerprint is unchanged (and the installed files are intact) nothing is downloaded or uploaded,
+     * and if the content turns out to be unchanged once uploaded it is not reinstalled;
+     * in either case only the variables are rewritten, and only if they have changed.
+     * A zip replacing a previous installation is synced file by file instead (see {@link ConfigurationZipDelta}). */
+    public void uploadConfiguration(ConfigurationSource.Opener opener, Map<String, Object> vars_map, boolean firstTime) throws IOException, IllegalArgumentException {
+        final ConfigurationManifest previous = firstTime ? null : loadManifest();
+        final String previousFingerprint = previous != null && previous.isIntact() ? previous.getSourceFingerprint() : null;
+        try (ConfigurationSource source = opener.open(previousFingerprint)) {
+            if (source == null) {
+                logger.log("Configuration source reports it is unchanged since " + previousFingerprint);
+            }
+            uploadConfiguration(source, previous, vars_map, firstTime);
+        }
+    }
+
+    /** The source is null if it is known to be unchanged since the previous manifest was written. */
+    private void uploadConfiguration(ConfigurationSource source, ConfigurationManifest previous, Map<String, Object> vars_map, boolean firstTime) throws IOException, IllegalArgumentException {
+        final String vars_json = vars_map != null && !vars_map.isEmpty()
+            ? new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(vars_map) : null;
+        final String varsSha256 = vars_json == null ? ConfigurationManifest.NONE : sha256(vars_json);
+
+        if (source == null || (previous != null && previous.isIntact() && source.getFingerprint() != null
+                && source.getFingerprint().equals(previous.getSourceFingerprint()))) {
+            if (source != null) {
+                source.abandon();
+            }
+            if (varsSha256.equals(previous.getVarsSha256())) {
+                logger.log("Configuration and variables unchanged; skipping upload");
+                return;
+            }
+            logger.log("Configuration unchanged; updating variables only");
+            final List<String> script = new ArrayList<>();
+            script.add("cd " + getWorkDir() + " || exit 1");
+            addVarsCommands(script, vars_json, firstTime);
+            addWriteManifestCommands(script, previous.getSourceFingerprint(), previous.getContentSha256(), varsSha256, "grep -v '^#' " + TF_MANIFEST);
+            ssh.runSSHCommand(String.join("\n", script), PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
+            return;
+        }
+
+        final BufferedInputStream contents = new BufferedInputStream(source.getInputStream());
+        if (previous != null && previous.isIntact() && !previous.getFiles().isEmpty() && ConfigurationZipDelta.isZip(contents)) {
+            syncConfigurationZip(source, contents, previous, vars_json, varsSha256);
+            return;
+        }
+
+        final String tmpFilename = ".terraform-upload-" + commandIdentifier + "-" + RandomStringUtils.randomAlphanumeric(4) + ".file";
+        try {
+            final CommandResult received = ssh.runSSHCommandWithInput(String.format("mkdir -p %s && cat > %s/%s && sha256sum < %s/%s",
+                getWorkDir(), getWorkDir(), tmpFilename, getWorkDir(), tmpFilename), contents, PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
+            source.verify(received.getStdout().split("\\s", 2)[0]);
+        } catch (IOException | RuntimeException e) {
+            try {
+                ssh.runSSHCommand(String.format("rm -f %s/%s", getWorkDir(), tmpFilename), PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
+            } catch (Exception e2) {
+                logger.log("Unable to remove partial upload of configuration: " + e2);
+            }
+            throw e;
+        }
+        logger.log(String.format("Uploaded configuration from %s: %d bytes, sha256 %s", source.getDescription(), source.getCount(), source.getSha256()));
+
+        final List<String> script = new ArrayList<>();
+        script.add("cd " + getWorkDir() + " || exit 1");
+        if (previous != null && previous.isIntact() && source.getSha256().equals(previous.getContentSha256())) {
+            logger.log("Configuration content unchanged; not reinstalling it");
+            script.add("rm -f " + tmpFilename);
+            addVarsCommands(script, vars_json, firstTime);
+            addWriteManifestCommands(script, source.getFingerprint(), source.getSha256(), varsSha256, "grep -v '^#' " + TF_MANIFEST);
+        } else {
+            // the MIME type is printed first so it can be reported if it is not one we know how to install;
+            // a plain file is renamed into place so it is replaced atomically
+            script.add("mime_type=`file --brief --mime-type " + tmpFilename + "`");
+            script.add("echo $mime_type");
+            script.add("case $mime_type in");
+            script.add(String.format("  text/plain) mv -f %s %s || exit 1 ; installed='sha256sum %s' ;;", tmpFilename, TF_CONFFILENAME, TF_CONFFILENAME));
+            script.add(String.format("  application/zip) unzip -o -q %s -d . || { rc=$? ; rm -f %s ; exit $rc ; }", tmpFilename, tmpFilename));
+            // note the installed files (not directories) while the archive is still there to list them, leaving out
+            // any outside the work directory (which unzip does not install there) so they are never deleted later
+            script.add(String.format("    unzip -Z1 %s | grep -v '/$' | grep -Ev '%s' | while IFS= read -r f ; do sha256sum \"$f\" ; done > %s.files",
+                tmpFilename, ConfigurationManifest.UNSAFE_PATH_PATTERN, tmpFilename));
+            script.add(String.format("    rm -f %s ; installed='cat %s.files' ;;", tmpFilename, tmpFilename));
+            script.add(String.format("  *) rm -f %s ; exit %d ;;", tmpFilename, EXIT_CODE_UNKNOWN_MIME_TYPE));
+            script.add("esac");
+            if (previous != null) {
+                // delete files from the previous configuration which are not in this one
+                script.add(String.format("$installed | cut -c67- > %s.new", tmpFilename));
+                script.add(String.format("grep -v '^#' %s | cut -c67- | grep -Ev '%s' | grep -Fvx -f %s.new | while IFS= read -r f ; do rm -f -- \"$f\" ; done",
+                    TF_MANIFEST, ConfigurationManifest.UNSAFE_PATH_PATTERN, tmpFilename));
+                script.add(String.format("rm -f %s.new", tmpFilename));
+            }
+            addVarsCommands(script, vars_json, firstTime);
+            addWriteManifestCommands(script, source.getFingerprint(), source.getSha256(), varsSha256, "$installed");
+            script.add("rm -f " + tmpFilename + ".files");
+        }
+
+        try {
+            ssh.runSSHCommand(String.join("\n", script), PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
+        } catch (IllegalStateException e) {
+            if (((Integer) EXIT_CODE_UNKNOWN_MIME_TYPE).equals(ssh.lastExitStatusOrNull)) {
+                throw new IllegalArgumentException("Unknown MIME type " + ssh.lastStdout.trim());
+            }
+            throw e;
+        }
+    }
+
+    /** Sends only the added and changed files from the zip, as a smaller zip, and deletes those no longer in it. */
+    private void syncConfigurationZip(ConfigurationSource source, InputStream contents, ConfigurationManifest previous,
+            String vars_json, String varsSha256) throws IOException {
+        final String deltaFilename = ".terraform-delta-" + commandIdentifier + "-" + RandomStringUtils.randomAlphanumeric(4) + ".zip";
+        final ConfigurationZipDelta delta = new ConfigurationZipDelta(previous.getFiles());
+        final MessageDigest deltaSha256 = newSha256();
+        try {
+            final CommandResult received = ssh.runSSHCommandWithInput(String.format("mkdir -p %s && cat > %s/%s && sha256sum < %s/%s",
+                    getWorkDir(), getWorkDir(), deltaFilename, getWorkDir(), deltaFilename),
+                stdin -> {
+                    final DigestOutputStream digesting = new DigestOutputStream(stdin, deltaSha256);
+                    delta.write(contents, digesting);
+                    digesting.flush();
+                }, PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
+            // the source is checked as read, and the delta made from it as received
+            source.verify(null);
+            final String sent = hex(deltaSha256.digest());
+            final String receivedSha256 = received.getStdout().split("\\s", 2)[0];
+            if (!receivedSha256.equalsIgnoreCase(sent)) {
+                throw ConnectorHandlerFailures.unhandled(String.format("Configuration changes from %s were corrupted in transfer: checksum %s sent but %s received",
+                    source.getDescription(), sent, receivedSha256));
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                ssh.runSSHCommand(String.format("rm -f %s/%s", getWorkDir(), deltaFilename), PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
+            } catch (Exception e2) {
+                logger.log("Unable to remove partial upload of configuration: " + e2);
+            }
+            throw e;
+        }
+        for (String skipped : delta.getSkipped()) {
+            logger.log("Not installing " + skipped + " from the configuration, as it is outside the work directory");
+        }
+        logger.log(String.format("Synced configuration from %s: %d files, %d added or changed, %d removed",
+            source.getDescription(), delta.getFiles().size(), delta.getChanged().size(), delta.getRemoved().size()));
+
+        final List<String> script = new ArrayList<>();
+        script.add("cd " + getWorkDir() + " || exit 1");
+        if (!delta.getChanged().isEmpty()) {
+            script.add(String.format("unzip -o -q %s -d . || { rc=$? ; rm -f %s ; exit $rc ; }", deltaFilename, deltaFilename));
+        }
+        script.add("rm -f " + deltaFilename);
+        for (String removed : delta.getRemoved()) {
+            script.add("rm -f -- " + shellQuote(removed));
         }
-        
+        // the delta zip has no modes, so unzip leaves files as the umask makes them; set them as in the archive
+        final Map<Integer, List<String>> filesByMode = new TreeMap<>();
+        delta.getModes().forEach((name, mode) -> filesByMode.computeIfAbsent(mode, m -> new ArrayList<>()).add(shellQuote(name)));
+        filesByMode.forEach((mode, names) -> script.add(String.format("chmod %o -- %s", mode, String.join(" ", names))));
+        addVarsCommands(script, vars_json, false);
+        final String delimiter = "CFN_FILES_EOF_" + RandomStringUtils.randomAlphanumeric(12);
+        final StringBuilder files = new StringBuilder();
+        delta.getFiles().forEach((name, hash) -> files.append(hash).append("  ").append(name).append("\n"));
+        script.add("cat > " + deltaFilename + ".files <<'" + delimiter + "'\n" + files + delimiter);
+        addWriteManifestCommands(script, source.getFingerprint(), source.getSha256(), varsSha256, "cat " + deltaFilename + ".files");
+        script.add("rm -f " + deltaFilename + ".files");
+        ssh.runSSHCommand(String.join("\n", script), PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
+    }
+
+    private void addVarsCommands(List<String> script, String vars_json, boolean firstTime) {
         final String vars_filename = "cfn-" + modelIdentifier + ".auto.tfvars.json";
-        if (vars_map != null && !vars_map.isEmpty()) {
-            final byte[] vars_json = new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsBytes(vars_map);
-            // Work around the tilde [non-]expansion as explained above.
-            ssh.uploadFile(getScpTmpDir(), vars_filename, vars_json);
-            ssh.runSSHCommand(String.format("mv %s/%s %s/%s", getScpTmpDir(), vars_filename, getWorkDir(), vars_filename), PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
+        if (vars_json != null) {
+            // the (small) vars file comes inline, saving an upload
+            final String delimiter = "CFN_VARS_EOF_" + RandomStringUtils.randomAlphanumeric(12);
+            script.add("cat > " + vars_filename + ".tmp <<'" + delimiter + "'\n" + vars_json + "\n" + delimiter);
+            script.add(String.format("mv -f %s.tmp %s", vars_filename, vars_filename));
         } else if (!firstTime) {
             // delete an old vars file if updating with no vars, in case there were vars there previously
-            ssh.runSSHCommand(String.format("rm -f %s/%s", getWorkDir(), vars_filename), PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
+            script.add("rm -f " + vars_filename);
+        }
+    }
+
+    /** Writes the manifest headers followed by the output of the given command, which should list the installed files
+     * in <code>sha256sum</code> format; run in the work directory. */
+    private void addWriteManifestCommands(List<String> script, String sourceFingerprint, String contentSha256, String varsSha256, String filesCommand) {
+        script.add(String.format("{ printf '#%s %%s\\n#%s %%s\\n#%s %%s\\n' %s %s %s ; %s ; } > %s.tmp || exit 1",
+            ConfigurationManifest.SOURCE, ConfigurationManifest.SHA256, ConfigurationManifest.VARS,
+            shellQuote(sourceFingerprint == null ? ConfigurationManifest.NONE : sourceFingerprint), shellQuote(contentSha256), shellQuote(varsSha256),
+            filesCommand, TF_MANIFEST));
+        script.add(String.format("mv -f %s.tmp %s", TF_MANIFEST, TF_MANIFEST));
+    }
+
+    /** Reads the manifest from the server, checking the files it lists are intact; returns null if there is none. */
+    protected ConfigurationManifest loadManifest() throws IOException {
+        final CommandResult result = ssh.runSSHCommand(String.join("\n",
+                "cd " + getWorkDir() + " 2>/dev/null || exit 0",
+                "[ -f " + TF_MANIFEST + " ] || exit 0",
+                "cat " + TF_MANIFEST,
+                "if grep -v '^#' " + TF_MANIFEST + " | sha256sum -c --quiet --status 2>/dev/null ; then",
+                "  echo '#" + ConfigurationManifest.INTACT + " yes'",
+                "else",
+                "  echo '#" + ConfigurationManifest.INTACT + " no'",
+                "fi"),
+            PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
+        return ConfigurationManifest.parse(result.getStdout());
+    }
+
+    private static String shellQuote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    private static String sha256(String s) {
+        return hex(newSha256().digest(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-        
-        ssh.rmdir(getScpTmpDir());
+    }
+
+    private static String hex(byte[] digest) {
+        return String.format("%064x", new BigInteger(1, digest));
     }
 
     // provide a way to store metadata on the server
     public void saveMetadata(Map<String,Object> metadata) throws IOException {
-        ssh.mkdir(getScpTmpDir());
-        String tmpFileBasename = "terraform-upload-metadata-"+RandomStringUtils.randomAlphanumeric(4)+".file";
-        // Work around the tilde [non-]expansion as explained above.
-        final byte[] vars_json = new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsBytes(metadata);
-        ssh.uploadFile(getScpTmpDir(), tmpFileBasename, vars_json);
-        ssh.mkdir(getWorkDir());
-        ssh.runSSHCommand(String.format("mv %s/%s %s/%s", getScpTmpDir(), tmpFileBasename, 
-            getWorkDir(), TF_CFN_METADATA_JSON), PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
-        ssh.rmdir(getScpTmpDir());
+        final byte[] metadata_json = new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsBytes(metadata);
+        final String target = getWorkDir() + "/" + TF_CFN_METADATA_JSON;
+        ssh.runSSHCommandWithInput(String.format("mkdir -p %s && cat > %s.tmp && mv -f %s.tmp %s", getWorkDir(), target, target, target),
+            new ByteArrayInputStream(metadata_json), PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE);
     }
 
     // provide a way to store metadata on the server
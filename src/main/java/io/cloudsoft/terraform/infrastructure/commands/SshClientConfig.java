@@ -0,0 +1,99 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.schmizz.sshj.Config;
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.common.Factory;
+
+/** Builds the sshj {@link Config} used for connections to the Terraform server, once per container.
+ * <p>
+ * Constructing a {@link DefaultConfig} registers (and for some, probes the JCE for) every cipher, MAC, key exchange
+ * and signature algorithm sshj knows, which is a noticeable part of a cold start; the config is only read when
+ * connecting, so one instance, with its lists made unmodifiable, is shared by all connections.
+ * <p>
+ * The algorithms offered are reordered so the preferred ones are proposed first (SSH picks the first of the client's
+ * algorithms the server also supports); the others are kept, after them, so servers without the preferred ones
+ * can still be reached. Preferred names this version of sshj does not implement are ignored, so the list can
+ * name algorithms (such as <code>chacha20-poly1305@openssh.com</code> and the AES-GCM ciphers) which later
+ * versions add.
+ */
+public class SshClientConfig {
+
+    /** Fast modern algorithms: curve25519 key exchange, ed25519 host keys, AEAD ciphers where available,
+     * otherwise AES-CTR (hardware accelerated on the JVMs used by Lambda) with encrypt-then-MAC SHA-2 MACs. */
+    public static final List<String> DEFAULT_PREFERRED_ALGORITHMS = Collections.unmodifiableList(Arrays.asList(
+        "curve25519-sha256", "curve25519-sha256@libssh.org", "ecdh-sha2-nistp256",
+        "ssh-ed25519", "ecdsa-sha2-nistp256",
+        "chacha20-poly1305@openssh.com", "aes128-gcm@openssh.com", "aes256-gcm@openssh.com", "aes128-ctr", "aes256-ctr",
+        "hmac-sha2-256-etm@openssh.com", "hmac-sha2-512-etm@openssh.com", "hmac-sha2-256", "hmac-sha2-512"));
+
+    private static final Map<List<String>, Config> CONFIGS = new LinkedHashMap<>();
+
+    /** Returns the shared config preferring the given algorithms (in order), building it on first use;
+     * null or empty uses {@link #DEFAULT_PREFERRED_ALGORITHMS}. */
+    public static Config get(List<String> preferredAlgorithms) {
+        final List<String> preferred = preferredAlgorithms == null || preferredAlgorithms.isEmpty()
+            ? DEFAULT_PREFERRED_ALGORITHMS : Collections.unmodifiableList(new ArrayList<>(preferredAlgorithms));
+        synchronized (CONFIGS) {
+            return CONFIGS.computeIfAbsent(preferred, SshClientConfig::build);
+        }
+    }
+
+    /** Parses a comma- or space-separated list of algorithm names, as given in the connector parameters. */
+    public static List<String> parseAlgorithms(String names) {
+        final List<String> result = new ArrayList<>();
+        if (names != null) {
+            for (String name : names.split("[,\\s]+")) {
+                if (!name.isEmpty()) {
+                    result.add(name);
+                }
+            }
+        }
+        return result;
+    }
+
+    static Config build(List<String> preferred) {
+        final DefaultConfig config = new DefaultConfig();
+        config.setKeyExchangeFactories(prefer(config.getKeyExchangeFactories(), preferred));
+        config.setSignatureFactories(prefer(config.getSignatureFactories(), preferred));
+        config.setCipherFactories(prefer(config.getCipherFactories(), preferred));
+        config.setMACFactories(prefer(config.getMACFactories(), preferred));
+        config.setCompressionFactories(Collections.unmodifiableList(new ArrayList<>(config.getCompressionFactories())));
+        config.setFileKeyProviderFactories(Collections.unmodifiableList(new ArrayList<>(config.getFileKeyProviderFactories())));
+        return config;
+    }
+
+    /** The factories with those named in the preferred list first, in that order, then the rest in their original order. */
+    static <T> List<Factory.Named<T>> prefer(List<Factory.Named<T>> factories, List<String> preferred) {
+        final List<Factory.Named<T>> result = new ArrayList<>(factories.size());
+        for (String name : preferred) {
+            for (Factory.Named<T> f : factories) {
+                if (f.getName().equals(name) && !result.contains(f)) {
+                    result.add(f);
+                }
+            }
+        }
+        for (Factory.Named<T> f : factories) {
+            if (!result.contains(f)) {
+                result.add(f);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /** Algorithm names offered by the config, in order of preference; for tests. */
+    static List<String> names(List<? extends Factory.Named<?>> factories) {
+        final List<String> result = new ArrayList<>(factories.size());
+        for (Factory.Named<?> f : factories) {
+            result.add(f.getName());
+        }
+        return result;
+    }
+
+}
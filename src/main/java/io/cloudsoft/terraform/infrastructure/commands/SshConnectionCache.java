@@ -0,0 +1,115 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.SSHPacket;
+import net.schmizz.sshj.connection.ConnectionException;
+
+/** Process-wide pool of idle, authenticated SSH connections.
+ * <p>
+ * Lambda keeps static state for as long as a container stays warm, so a connection released at the end of
+ * one invocation can be picked up by the next (typically the next poll of the same command), skipping the
+ * TCP connect, key exchange and authentication. At most one idle connection is kept per key; connections
+ * idle for longer than the limit given by the caller are closed rather than reused, and every connection is
+ * checked with a round trip to the server before it is handed out, as the server (or a NAT in between) may
+ * have dropped it while the container was frozen.
+ */
+class SshConnectionCache {
+
+    private static final long LIVENESS_CHECK_TIMEOUT_MILLIS = 2000;
+
+    private static final Map<String, IdleConnection> IDLE = new LinkedHashMap<>();
+
+    private static class IdleConnection {
+        final SSHClient client;
+        final long releasedAt;
+
+        IdleConnection(SSHClient client, long releasedAt) {
+            this.client = client;
+            this.releasedAt = releasedAt;
+        }
+    }
+
+    /** key identifying connections which can be used interchangeably */
+    static String key(String host, int port, String username, String clientKeyFingerprint, String serverKeyFingerprint) {
+        return username + "@" + host + ":" + port + "/" + clientKeyFingerprint + "/" + serverKeyFingerprint;
+    }
+
+    /** Returns a live idle connection for the given key, removing it from the cache, or null if there is none. */
+    static SSHClient acquire(String key, long maxIdleMillis) {
+        final IdleConnection idle;
+        synchronized (SshConnectionCache.class) {
+            evictExpired(maxIdleMillis);
+            idle = IDLE.remove(key);
+        }
+        if (idle == null) {
+            return null;
+        }
+        if (!isAlive(idle.client)) {
+            close(idle.client);
+            return null;
+        }
+        return idle.client;
+    }
+
+    /** Returns a connection to the cache for reuse, or closes it if it is not reusable. */
+    static void release(String key, SSHClient client, long maxIdleMillis) {
+        if (maxIdleMillis <= 0 || !client.isConnected() || !client.isAuthenticated()) {
+            close(client);
+            return;
+        }
+        final IdleConnection previous;
+        synchronized (SshConnectionCache.class) {
+            evictExpired(maxIdleMillis);
+            previous = IDLE.put(key, new IdleConnection(client, System.currentTimeMillis()));
+        }
+        if (previous != null && previous.client != client) {
+            close(previous.client);
+        }
+    }
+
+    private static synchronized void evictExpired(long maxIdleMillis) {
+        final long now = System.currentTimeMillis();
+        for (Iterator<IdleConnection> i = IDLE.values().iterator(); i.hasNext(); ) {
+            IdleConnection idle = i.next();
+            if (now - idle.releasedAt > maxIdleMillis || !idle.client.isConnected()) {
+                i.remove();
+                close(idle.client);
+            }
+        }
+    }
+
+    private static boolean isAlive(SSHClient client) {
+        if (!client.isConnected() || !client.isAuthenticated()) {
+            return false;
+        }
+        try {
+            // any reply proves the link works; OpenSSH answers this one with a failure, which is fine
+            final Promise<SSHPacket, ConnectionException> reply =
+                client.getConnection().sendGlobalRequest("keepalive@openssh.com", true, new byte[0]);
+            try {
+                reply.tryRetrieve(LIVENESS_CHECK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (ConnectionException e) {
+                // request refused, but the server is there
+            }
+            return reply.isFulfilled() && client.isConnected();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void close(SSHClient client) {
+        try {
+            client.disconnect();
+            client.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+}
@@ -1,34 +1,101 @@
 package io.cloudsoft.terraform.infrastructure.commands;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.io.output.TeeOutputStream;
 
 import io.cloudsoft.terraform.infrastructure.TerraformParameters;
 import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.connection.ConnectionException;
 import net.schmizz.sshj.connection.channel.direct.Session;
-import net.schmizz.sshj.xfer.InMemorySourceFile;
+import net.schmizz.sshj.transport.TransportException;
+import net.schmizz.sshj.userauth.UserAuthException;
+import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
 import software.amazon.cloudformation.proxy.Logger;
 
-public class SshToolbox {
+/** Runs commands and transfers files on the Terraform server.
+ * <p>
+ * A single authenticated connection is opened lazily and shared by all calls made through this toolbox,
+ * so callers should {@link #close()} it when done (normally at the end of a handler invocation).
+ * If the link drops the connection is re-established on next use.
+ * On close the connection is handed to the {@link SshConnectionCache} so that later invocations
+ * in the same (warm) container can reuse it.
+ */
+public class SshToolbox implements Closeable {
+
+    private static final int KEEPALIVE_INTERVAL_SECONDS = 15;
+    private static final int COPY_BUFFER_SIZE = 32 * 1024;
+
+    private static final ExecutorService STREAM_COPIERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ssh-output-copier");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final int MAX_CACHED_KEYS = 4;
+
+    private static final Map<String, KeyProvider> KEY_PROVIDERS = new LinkedHashMap<String, KeyProvider>(MAX_CACHED_KEYS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KeyProvider> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
 
     protected final Logger logger;
-    protected final String serverHostname, sshUsername, sshServerKeyFP,
-            sshClientSecretKeyContents;
+    private final TerraformParameters params;
+    protected final String serverHostname, sshServerKeyFP;
+    // these can change if authentication fails with cached parameters
+    protected String sshUsername, sshClientSecretKeyContents;
     protected final int sshPort;
+    protected final long connectionMaxIdleMillis;
+    protected final long commandTimeoutSeconds;
+    protected final List<String> preferredAlgorithms;
+    private String connectionCacheKey;
     protected String lastStdout, lastStderr;
     protected Integer lastExitStatusOrNull;
 
-    protected SshToolbox(TerraformParameters params, Logger logger) {
+    private SSHClient connection;
+
+    public SshToolbox(TerraformParameters params, Logger logger) {
         // TODO this should take the arguments below as parameters rather than depend on TerraformParameters 
         this.logger = logger;
+        this.params = params;
         this.serverHostname = params.getHost();
         this.sshPort = params.getPort();
         this.sshServerKeyFP = params.getFingerprint();
         this.sshUsername = params.getUsername();
         this.sshClientSecretKeyContents = params.getSSHKey();
+        this.connectionMaxIdleMillis = TimeUnit.SECONDS.toMillis(params.getSshConnectionIdleSeconds());
+        this.commandTimeoutSeconds = params.getSshCommandTimeoutSeconds();
+        this.preferredAlgorithms = SshClientConfig.parseAlgorithms(params.getSshAlgorithms());
+        this.connectionCacheKey = SshConnectionCache.key(serverHostname, sshPort, sshUsername,
+            sha256(sshClientSecretKeyContents), sshServerKeyFP);
+    }
+
+    /** How long a command may take before it is abandoned. */
+    public long getCommandTimeoutSeconds() {
+        return commandTimeoutSeconds;
     }
 
     protected void mkdir(String dir) throws IOException {
@@ -48,111 +115,478 @@ public class SshToolbox {
     }
 
     public enum PostRunBehaviour { IGNORE, WARN, FAIL }
-    
-    protected void runSSHCommand(String command, PostRunBehaviour onNonZeroExitCode, PostRunBehaviour onNonEmptyStdErr) throws IOException {
+
+    /** Outcome of a remote command. */
+    public static class CommandResult {
+        private final Integer exitStatusOrNull;
+        private final String stdout, stderr;
+
+        CommandResult(Integer exitStatusOrNull, String stdout, String stderr) {
+            this.exitStatusOrNull = exitStatusOrNull;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        public Integer getExitStatusOrNull() {
+            return exitStatusOrNull;
+        }
+
+        public String getStdout() {
+            return stdout;
+        }
+
+        public String getStderr() {
+            return stderr;
+        }
+    }
+
+    protected CommandResult runSSHCommand(String command, PostRunBehaviour onNonZeroExitCode, PostRunBehaviour onNonEmptyStdErr) throws IOException {
         debug("DEBUG runSSHCommand: @" + serverHostname + "> " + command);
 
-        final SSHClient ssh = new SSHClient();
+        final RawOutput output = exec(command);
+        final CommandResult result = new CommandResult(output.exitStatusOrNull, output.stdoutAsString(), output.stderrAsString());
+        lastExitStatusOrNull = result.exitStatusOrNull;
+        lastStdout = result.stdout;
+        lastStderr = result.stderr;
+        checkResult(command, summarize(result), onNonZeroExitCode, onNonEmptyStdErr);
+        return result;
+    }
 
-        addHostKeyVerifier(ssh);
-        ssh.connect(serverHostname, sshPort);
-        Session session = null;
-        try {
-            ssh.authPublickey(sshUsername, ssh.loadKeys(sshClientSecretKeyContents, null, null));
-            session = ssh.startSession();
-            final Session.Command cmd = session.exec(command);
-            cmd.join(30, TimeUnit.SECONDS);
-            lastExitStatusOrNull = cmd.getExitStatus();
-            lastStdout = IOUtils.readFully(cmd.getInputStream()).toString();
-            lastStderr = IOUtils.readFully(cmd.getErrorStream()).toString();
-            debug("stdout: " + lastStdout);
-            debug("stderr: " + lastStderr);
-            debug("exit status: " + lastExitStatusOrNull);
-            if (!((Integer) 0).equals(lastExitStatusOrNull)) {
-                if (onNonZeroExitCode == PostRunBehaviour.IGNORE) {
-                    // nothing
-                } else {
-                    logger.log("WARN: unexpected exit code from command '" + command + "': " + lastExitStatusOrNull + "\n"
-                        + "  stderr: " + lastStderr + "\n"
-                        + "  stdout: " + lastStdout);
-                    if (onNonZeroExitCode == PostRunBehaviour.FAIL) {
-                        throw new IllegalStateException("Non-zero exit code ("+lastExitStatusOrNull+")");
-                    }
+    /** Runs a command passing its stdout and stderr to the given sinks as they are produced,
+     * without holding them in memory. The returned result has only the head and tail of each
+     * (see {@link BoundedOutputCapture}), for diagnostics. */
+    public CommandResult runSSHCommandStreaming(String command, OutputStream stdoutSink, OutputStream stderrSink,
+            long timeoutSeconds, PostRunBehaviour onNonZeroExitCode, PostRunBehaviour onNonEmptyStdErr) throws IOException {
+        debug("DEBUG runSSHCommand (streaming): @" + serverHostname + "> " + command);
+
+        final BoundedOutputCapture stdout = new BoundedOutputCapture(), stderr = new BoundedOutputCapture();
+        final Integer exitStatus = exec(command, null, new TeeOutputStream(stdoutSink, stdout), new TeeOutputStream(stderrSink, stderr),
+            timeoutSeconds);
+        final CommandResult result = new CommandResult(exitStatus, stdout.toString(), stderr.toString());
+        lastExitStatusOrNull = result.exitStatusOrNull;
+        lastStdout = result.stdout;
+        lastStderr = result.stderr;
+        checkResult(command, result, onNonZeroExitCode, onNonEmptyStdErr);
+        return result;
+    }
+
+    /** Runs a command with the given stream copied to its stdin (and closed, so the command sees end of input),
+     * e.g. <code>cat &gt; file</code> to upload a file. Unlike SCP or SFTP the command is run by the user's shell,
+     * so paths can use <code>~</code> and quoting as normal, and the data goes wherever the command puts it
+     * in a single transfer. The timeout applies once all input has been sent.
+     * The returned result has only the head and tail of the output, as for
+     * {@link #runSSHCommandStreaming(String, OutputStream, OutputStream, long, PostRunBehaviour, PostRunBehaviour)}. */
+    public CommandResult runSSHCommandWithInput(String command, InputStream stdin,
+            PostRunBehaviour onNonZeroExitCode, PostRunBehaviour onNonEmptyStdErr) throws IOException {
+        return runSSHCommandWithInput(command, remoteStdin -> {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = stdin.read(buffer)) != -1) {
+                remoteStdin.write(buffer, 0, n);
+            }
+        }, onNonZeroExitCode, onNonEmptyStdErr);
+    }
+
+    /** Writes a command's stdin, for input which is generated rather than copied from a stream. */
+    public interface InputWriter {
+        void writeTo(OutputStream stdin) throws IOException;
+    }
+
+    /** As {@link #runSSHCommandWithInput(String, InputStream, PostRunBehaviour, PostRunBehaviour)}
+     * but with the stdin written by the caller; the stream is closed once the writer returns. */
+    public CommandResult runSSHCommandWithInput(String command, InputWriter stdin,
+            PostRunBehaviour onNonZeroExitCode, PostRunBehaviour onNonEmptyStdErr) throws IOException {
+        debug("DEBUG runSSHCommand (with input): @" + serverHostname + "> " + command);
+
+        final BoundedOutputCapture stdout = new BoundedOutputCapture(), stderr = new BoundedOutputCapture();
+        final Integer exitStatus = exec(command, stdin, stdout, stderr, commandTimeoutSeconds);
+        final CommandResult result = new CommandResult(exitStatus, stdout.toString(), stderr.toString());
+        lastExitStatusOrNull = result.exitStatusOrNull;
+        lastStdout = result.stdout;
+        lastStderr = result.stderr;
+        checkResult(command, result, onNonZeroExitCode, onNonEmptyStdErr);
+        return result;
+    }
+
+    private CommandResult summarize(CommandResult result) {
+        return new CommandResult(result.exitStatusOrNull,
+            BoundedOutputCapture.summarize(result.stdout), BoundedOutputCapture.summarize(result.stderr));
+    }
+
+    /** Logs the result and applies the given behaviours; the result should be small enough to log. */
+    protected void checkResult(String command, CommandResult result, PostRunBehaviour onNonZeroExitCode, PostRunBehaviour onNonEmptyStdErr) {
+        debug("stdout: " + result.stdout);
+        debug("stderr: " + result.stderr);
+        debug("exit status: " + result.exitStatusOrNull);
+        if (!((Integer) 0).equals(result.exitStatusOrNull)) {
+            if (onNonZeroExitCode == PostRunBehaviour.IGNORE) {
+                // nothing
+            } else {
+                logger.log("WARN: unexpected exit code from command '" + command + "': " + result.exitStatusOrNull + "\n"
+                    + "  stderr: " + result.stderr + "\n"
+                    + "  stdout: " + result.stdout);
+                if (onNonZeroExitCode == PostRunBehaviour.FAIL) {
+                    throw new IllegalStateException("Non-zero exit code ("+result.exitStatusOrNull+")");
                 }
             }
-            if (!lastStderr.isEmpty()) {
-                if (onNonEmptyStdErr == PostRunBehaviour.IGNORE) {
-                    // nothing
-                } else {
-                    logger.log("WARN: unexpected stderr from command '" + command + "'; exit code 0 but:\n"
-                        + "  stderr: " + lastStderr + "\n"
-                        + "  stdout: " + lastStdout);
-                    if (onNonEmptyStdErr == PostRunBehaviour.FAIL) {
-                        throw new IllegalStateException("Non-empty stderr");
-                    }
+        }
+        if (!result.stderr.isEmpty()) {
+            if (onNonEmptyStdErr == PostRunBehaviour.IGNORE) {
+                // nothing
+            } else {
+                logger.log("WARN: unexpected stderr from command '" + command + "'; exit code 0 but:\n"
+                    + "  stderr: " + result.stderr + "\n"
+                    + "  stdout: " + result.stdout);
+                if (onNonEmptyStdErr == PostRunBehaviour.FAIL) {
+                    throw new IllegalStateException("Non-empty stderr");
                 }
             }
-        } finally {
-            try {
-                if (session != null) {
-                    session.close();
+        }
+    }
+
+    private static class RawOutput {
+        final Integer exitStatusOrNull;
+        final byte[] stdout, stderr;
+
+        RawOutput(Integer exitStatusOrNull, byte[] stdout, byte[] stderr) {
+            this.exitStatusOrNull = exitStatusOrNull;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        String stdoutAsString() {
+            return new String(stdout, StandardCharsets.UTF_8);
+        }
+
+        String stderrAsString() {
+            return new String(stderr, StandardCharsets.UTF_8);
+        }
+    }
+
+    private RawOutput exec(String command) throws IOException {
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream(), stderr = new ByteArrayOutputStream();
+        final Integer exitStatus = exec(command, null, stdout, stderr, commandTimeoutSeconds);
+        return new RawOutput(exitStatus, stdout.toByteArray(), stderr.toByteArray());
+    }
+
+    /** Runs the command, copying stdout and stderr to the sinks concurrently (so neither can fill
+     * its channel window and stall the command) while any stdin is sent, and returns its exit status. */
+    private Integer exec(String command, InputWriter stdin, OutputStream stdoutSink, OutputStream stderrSink, long timeoutSeconds) throws IOException {
+        final Session session = startSession();
+        Future<?> stdoutCopier = null, stderrCopier = null;
+        try {
+            final Session.Command cmd = session.exec(command);
+            stdoutCopier = copyInBackground(cmd.getInputStream(), stdoutSink);
+            stderrCopier = copyInBackground(cmd.getErrorStream(), stderrSink);
+            if (stdin != null) {
+                // the channel's window gives back-pressure: writes block until the server has taken the data
+                try (OutputStream remoteStdin = cmd.getOutputStream()) {
+                    stdin.writeTo(remoteStdin);
                 }
-            } catch (IOException e) {
-                // do nothing
             }
+            final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+            awaitCopy(stdoutCopier, deadline, timeoutSeconds);
+            awaitCopy(stderrCopier, deadline, timeoutSeconds);
+            cmd.join(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            return cmd.getExitStatus();
+        } finally {
             try {
-                ssh.disconnect();
-                ssh.close();
+                session.close();
             } catch (IOException e) {
                 // do nothing
             }
+            if (stdoutCopier != null) stdoutCopier.cancel(true);
+            if (stderrCopier != null) stderrCopier.cancel(true);
+        }
+    }
+
+    private static Future<?> copyInBackground(InputStream in, OutputStream out) {
+        return STREAM_COPIERS.submit(() -> {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            out.flush();
+            return null;
+        });
+    }
+
+    private static void awaitCopy(Future<?> copier, long deadline, long timeoutSeconds) throws IOException {
+        try {
+            copier.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("Command did not complete within " + timeoutSeconds + " seconds");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed reading command output: " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading command output");
+        }
+    }
+
+    /** Starts a {@link Batch} of commands to be run in a single remote exec. */
+    protected Batch batch() {
+        return new Batch();
+    }
+
+    /** Several commands run one after another in a single remote exec, to save a round trip per command.
+     * <p>
+     * Each step runs in its own subshell and has its exit code, stdout and stderr reported separately,
+     * with its {@link PostRunBehaviour}s applied as for {@link #runSSHCommand(String, PostRunBehaviour, PostRunBehaviour)}.
+     * If a step fails and its behaviour for that failure is {@link PostRunBehaviour#FAIL FAIL},
+     * the remaining steps are skipped (on the server) and {@link #run()} throws once all results are read;
+     * commands added with {@link #finallyRun(String)} are always run, after the steps, with output discarded.
+     */
+    public class Batch {
+        private static final String FRAME_MARKER = "#cfn-batch-step";
+
+        private final List<String> commands = new ArrayList<>();
+        private final List<PostRunBehaviour[]> behaviours = new ArrayList<>();
+        private final List<String> finallyCommands = new ArrayList<>();
+        private final List<CommandResult> results = new ArrayList<>();
+
+        public Batch add(String command, PostRunBehaviour onNonZeroExitCode, PostRunBehaviour onNonEmptyStdErr) {
+            commands.add(command);
+            behaviours.add(new PostRunBehaviour[] { onNonZeroExitCode, onNonEmptyStdErr });
+            return this;
+        }
+
+        public Batch finallyRun(String command) {
+            finallyCommands.add(command);
+            return this;
+        }
+
+        /** Results of the steps which were run, in order; available after {@link #run()}, even if it threw. */
+        public List<CommandResult> getResults() {
+            return Collections.unmodifiableList(results);
+        }
+
+        public List<CommandResult> run() throws IOException {
+            final String script = toScript();
+            debug("DEBUG runSSHCommand (batch of " + commands.size() + "): @" + serverHostname + "> " + script);
+            final RawOutput output = exec(script);
+            if (!((Integer) 0).equals(output.exitStatusOrNull)) {
+                throw new IllegalStateException("Batch failed with exit code " + output.exitStatusOrNull + ": " + output.stderrAsString());
+            }
+            parseFrames(output.stdout);
+            for (int i = 0; i < results.size(); i++) {
+                debug("step " + (i+1) + ":");
+                checkResult(commands.get(i), summarize(results.get(i)), behaviours.get(i)[0], behaviours.get(i)[1]);
+            }
+            if (results.size() < commands.size()) {
+                // shouldn't happen, as a skip always follows a failure which throws above
+                throw new IllegalStateException("Only " + results.size() + " of " + commands.size() + " steps were run");
+            }
+            return getResults();
+        }
+
+        String toScript() {
+            final StringBuilder script = new StringBuilder("__cfn_batch=$(mktemp -d) || exit 1\n");
+            for (int i = 0; i < commands.size(); i++) {
+                final String f = "\"$__cfn_batch/" + i;
+                script.append("[ -n \"$__cfn_batch_abort\" ] || {\n")
+                    .append("( ").append(commands.get(i)).append("\n")
+                    .append(") >").append(f).append(".out\" 2>").append(f).append(".err\"\n")
+                    .append("echo $? >").append(f).append(".rc\"\n");
+                if (behaviours.get(i)[0] == PostRunBehaviour.FAIL) {
+                    script.append("[ \"$(cat ").append(f).append(".rc\")\" = 0 ] || __cfn_batch_abort=1\n");
+                }
+                if (behaviours.get(i)[1] == PostRunBehaviour.FAIL) {
+                    script.append("[ ! -s ").append(f).append(".err\" ] || __cfn_batch_abort=1\n");
+                }
+                script.append("}\n");
+            }
+            for (String command : finallyCommands) {
+                script.append("( ").append(command).append("\n) >/dev/null 2>&1\n");
+            }
+            script.append("__cfn_batch_i=0\n")
+                .append("while [ -f \"$__cfn_batch/$__cfn_batch_i.rc\" ]; do\n")
+                .append("  __cfn_batch_f=\"$__cfn_batch/$__cfn_batch_i\"\n")
+                .append("  echo '").append(FRAME_MARKER).append("'")
+                    .append(" $(cat \"$__cfn_batch_f.rc\") $(wc -c <\"$__cfn_batch_f.out\") $(wc -c <\"$__cfn_batch_f.err\")\n")
+                .append("  cat \"$__cfn_batch_f.out\" \"$__cfn_batch_f.err\"\n")
+                .append("  __cfn_batch_i=$((__cfn_batch_i+1))\n")
+                .append("done\n")
+                .append("rm -rf \"$__cfn_batch\"\n");
+            return script.toString();
+        }
+
+        /** each frame is a header line "marker exit-code stdout-length stderr-length" followed by the stdout and stderr bytes */
+        void parseFrames(byte[] out) {
+            results.clear();
+            int pos = 0;
+            while (pos < out.length) {
+                int eol = pos;
+                while (eol < out.length && out[eol] != '\n') eol++;
+                final String[] header = new String(out, pos, eol - pos, StandardCharsets.UTF_8).trim().split("\\s+");
+                if (header.length != 4 || !FRAME_MARKER.equals(header[0])) {
+                    throw new IllegalStateException("Unexpected output from batch at step " + (results.size()+1) + ": '"
+                        + new String(out, pos, Math.min(out.length - pos, 200), StandardCharsets.UTF_8) + "'");
+                }
+                final int outLength = Integer.parseInt(header[2]), errLength = Integer.parseInt(header[3]);
+                pos = eol + 1;
+                if (pos + outLength + errLength > out.length) {
+                    throw new IllegalStateException("Truncated output from batch at step " + (results.size()+1));
+                }
+                results.add(new CommandResult(Integer.parseInt(header[1]),
+                    new String(out, pos, outLength, StandardCharsets.UTF_8),
+                    new String(out, pos + outLength, errLength, StandardCharsets.UTF_8)));
+                pos += outLength + errLength;
+            }
+        }
+    }
+
+    // === connection ========================
+
+    /** Opens the shared connection now, if it is not already open, rather than on first use. */
+    public void connect() throws IOException {
+        connection();
+    }
+
+    /** Returns the shared connection, (re)connecting and authenticating if it is not already open. */
+    protected synchronized SSHClient connection() throws IOException {
+        if (connection != null && connection.isConnected() && connection.isAuthenticated()) {
+            return connection;
+        }
+        disconnectQuietly();
+
+        connection = SshConnectionCache.acquire(connectionCacheKey, connectionMaxIdleMillis);
+        if (connection != null) {
+            debug("DEBUG reusing cached SSH connection to " + serverHostname);
+            return connection;
+        }
+
+        try {
+            connection = connectAndAuthenticate();
+        } catch (UserAuthException e) {
+            // the key (or user) may have been rotated since the parameters were cached; if so, try again with the new ones
+            params.refresh();
+            final String username = params.getUsername(), key = params.getSSHKey();
+            if (username.equals(sshUsername) && key.equals(sshClientSecretKeyContents)) {
+                throw e;
+            }
+            logger.log("SSH authentication to " + serverHostname + " failed; retrying with updated credentials");
+            sshUsername = username;
+            sshClientSecretKeyContents = key;
+            connectionCacheKey = SshConnectionCache.key(serverHostname, sshPort, sshUsername,
+                sha256(sshClientSecretKeyContents), sshServerKeyFP);
+            connection = connectAndAuthenticate();
         }
+        return connection;
     }
 
-    protected void uploadFile(String dirName, String fileName, byte[] contents) throws IOException {
-        final BytesSourceFile src = new BytesSourceFile(fileName, contents);
-        final SSHClient ssh = new SSHClient();
+    private SSHClient connectAndAuthenticate() throws IOException {
+        final SSHClient ssh = new SSHClient(SshClientConfig.get(preferredAlgorithms));
         addHostKeyVerifier(ssh);
+        // must be set before connecting for the keepalive thread to start
+        ssh.getConnection().getKeepAlive().setKeepAliveInterval(KEEPALIVE_INTERVAL_SECONDS);
         ssh.connect(serverHostname, sshPort);
         try {
-            ssh.authPublickey(sshUsername, ssh.loadKeys(sshClientSecretKeyContents, null, null));
-            ssh.newSCPFileTransfer().upload(src, dirName);
-        } finally {
-            try {
-                ssh.disconnect();
-                ssh.close();
-            } catch (Exception ee) {
-                // ignore
+            ssh.authPublickey(sshUsername, loadKeys(ssh));
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(ssh);
+            throw e;
+        }
+        return ssh;
+    }
+
+    /** Parsed keys are kept for the life of the container, as parsing (and for encrypted formats, key derivation)
+     * is not cheap and the key rarely changes; they are looked up by a hash of the key text. */
+    private KeyProvider loadKeys(SSHClient ssh) throws IOException {
+        final String hash = sha256(sshClientSecretKeyContents);
+        synchronized (KEY_PROVIDERS) {
+            KeyProvider keys = KEY_PROVIDERS.get(hash);
+            if (keys == null) {
+                keys = ssh.loadKeys(sshClientSecretKeyContents, null, null);
+                KEY_PROVIDERS.put(hash, keys);
             }
+            return keys;
+        }
+    }
+
+    protected Session startSession() throws IOException {
+        try {
+            return connection().startSession();
+        } catch (ConnectionException | TransportException e) {
+            // the server may have dropped an idle link; try once more on a fresh connection
+            debug("DEBUG SSH connection to " + serverHostname + " lost (" + e + "); reconnecting");
+            disconnectQuietly();
+            return connection().startSession();
+        }
+    }
+
+    /** Releases the connection for reuse by a later toolbox with the same settings (or closes it if
+     * connection caching is disabled). */
+    @Override
+    public synchronized void close() {
+        if (connection != null) {
+            SshConnectionCache.release(connectionCacheKey, connection, connectionMaxIdleMillis);
+            connection = null;
         }
     }
 
+    private synchronized void disconnectQuietly() {
+        if (connection != null) {
+            closeQuietly(connection);
+            connection = null;
+        }
+    }
+
+    private static void closeQuietly(SSHClient ssh) {
+        try {
+            ssh.disconnect();
+            ssh.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    // === file helpers ========================
+
     protected String catFileIfExists(String remotePath) throws IOException {
         runSSHCommand(String.format("[ -f %s ] && cat %s || :", remotePath, remotePath), PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
         return lastStdout;
     }
 
-    private String getSnapshotFileName(String fn) {
-        return fn + ".snapshot";
-    }
-
     private String getOffsetFileName(String fn) {
         return fn + ".offset";
     }
 
+    /* Incremental reads remember, in the offset file, the inode of the log and how many bytes of it have
+     * been returned. Each read seeks straight to that offset ("tail -c +N" seeks on regular files) and
+     * returns only the bytes present when the read started, so the cost is proportional to the new output
+     * rather than to the size of the log. If the inode changes (the log was rotated or replaced) or the log
+     * is shorter than the offset (it was truncated), reading starts again from the beginning.
+     * An offset file containing only a number, as written by earlier versions, is taken as an offset into
+     * the current file. */
+
     protected String setupIncrementalFileCommand(String fn) {
-        return String.format(
-            "truncate --size=0 %s; "
-            + "echo 0 > %s", getSnapshotFileName(fn), getOffsetFileName(fn));
+        return String.format("echo 0 > %s", getOffsetFileName(fn));
     }
 
-    protected String catIncrementalFileIfExists(String fn) throws IOException {
-        final String sfn = getSnapshotFileName(fn), ofn = getOffsetFileName(fn);
-        runSSHCommand(String.format(
-            "cp %s %s; "
-            + "dd status=none if=%s bs=1 skip=`cat %s`; wc -c <%s >%s",
-            fn, sfn, sfn, ofn, sfn, ofn), PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE);
-        return lastStdout;
+    protected String catIncrementalFileCommand(String fn) {
+        final String ofn = getOffsetFileName(fn);
+        return String.join("\n",
+            String.format("[ -f %s ] || exit 0", fn),
+            String.format("set -- `stat -c '%%i %%s' %s`; ino=$1; size=$2", fn),
+            String.format("set -- `cat %s 2>/dev/null`", ofn),
+            "if [ $# -ge 2 ]; then last_ino=$1; offset=$2; else last_ino=$ino; offset=${1:-0}; fi",
+            "if [ \"$last_ino\" != \"$ino\" ] || [ \"$offset\" -gt \"$size\" ]; then offset=0; fi",
+            String.format("if [ \"$size\" -gt \"$offset\" ]; then tail -c +$((offset+1)) %s | head -c $((size-offset)); fi", fn),
+            String.format("echo \"$ino $size\" > %s", ofn));
+    }
+
+    private static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     private void addHostKeyVerifier(SSHClient ssh) {
@@ -163,26 +597,4 @@ public class SshToolbox {
         }
     }
 
-    private static class BytesSourceFile extends InMemorySourceFile {
-        final private String name;
-        final private byte[] contents;
-
-        BytesSourceFile(String name, byte[] contents) {
-            this.name = name;
-            this.contents = contents;
-        }
-
-        public String getName() {
-            return name;
-        }
-
-        public long getLength() {
-            return contents.length;
-        }
-
-        public InputStream getInputStream() {
-            return new ByteArrayInputStream(contents);
-        }
-    }
-
 }
@@ -0,0 +1,51 @@
+package io.cloudsoft.terraform.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+public class ConfigurationSourceTest {
+
+    private static final String HELLO_WORLD_SHA256 = "64ec88ca00b268e5ba1a35678a1b5316d212f4f366b2477232534a8aeca37f3c";
+
+    @Test
+    public void computesChecksumAsItIsRead() throws IOException {
+        ConfigurationSource source = ConfigurationSource.of("test", "Hello world".getBytes(StandardCharsets.UTF_8), 100);
+        IOUtils.toByteArray(source.getInputStream());
+
+        assertEquals(11, source.getCount());
+        assertEquals(HELLO_WORLD_SHA256, source.getSha256());
+        source.verify(HELLO_WORLD_SHA256 + "\n");
+    }
+
+    @Test
+    public void verifyThrowsIfChecksumDiffers() throws IOException {
+        ConfigurationSource source = ConfigurationSource.of("test", "Hello world".getBytes(StandardCharsets.UTF_8), 100);
+        IOUtils.toByteArray(source.getInputStream());
+
+        assertThrows(ConnectorHandlerFailures.Unhandled.class, () -> source.verify(HELLO_WORLD_SHA256.replace('6', '7')));
+    }
+
+    @Test
+    public void verifyThrowsIfShorterThanDeclared() throws IOException {
+        ConfigurationSource source = new ConfigurationSource("test", new ByteArrayInputStream("Hello".getBytes(StandardCharsets.UTF_8)), 11, 100);
+        IOUtils.toByteArray(source.getInputStream());
+
+        assertThrows(ConnectorHandlerFailures.Unhandled.class, () -> source.verify(null));
+    }
+
+    @Test
+    public void readThrowsOnceLimitExceeded() {
+        ConfigurationSource source = new ConfigurationSource("test", new ByteArrayInputStream("Hello world".getBytes(StandardCharsets.UTF_8)),
+            ConfigurationSource.UNKNOWN_LENGTH, 5);
+
+        assertThrows(IOException.class, () -> IOUtils.toByteArray(source.getInputStream()));
+    }
+
+}
@@ -0,0 +1,60 @@
+package io.cloudsoft.terraform.infrastructure;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+public class GzipCompressingInputStreamTest {
+
+    private static byte[] compress(byte[] data) throws IOException {
+        try (GzipCompressingInputStream in = new GzipCompressingInputStream(new ByteArrayInputStream(data))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private static byte[] decompress(byte[] gzipped) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void compressedTextIsReadableAsGzipAndSmaller() throws IOException {
+        final StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            log.append("aws_instance.server[").append(i % 7).append("]: Still creating... [").append(i).append("s elapsed]\n");
+        }
+        final byte[] data = log.toString().getBytes(StandardCharsets.UTF_8);
+        final byte[] gzipped = compress(data);
+
+        assertArrayEquals(data, decompress(gzipped));
+        assertTrue(gzipped.length * 10 < data.length, "compressed to " + gzipped.length + " of " + data.length);
+    }
+
+    @Test
+    public void compressesEmptyAndIncompressibleInput() throws IOException {
+        assertArrayEquals(new byte[0], decompress(compress(new byte[0])));
+
+        final byte[] random = new byte[300 * 1024];
+        new Random(1).nextBytes(random);
+        assertArrayEquals(random, decompress(compress(random)));
+    }
+
+    @Test
+    public void compressedLengthMatchesCompressedOutput() throws IOException {
+        final byte[] data = "hello hello hello hello\n".getBytes(StandardCharsets.UTF_8);
+        assertEquals(compress(data).length, GzipCompressingInputStream.compressedLength(new ByteArrayInputStream(data)));
+        // the same every time, so it can be read once for the length and again to send
+        assertArrayEquals(compress(data), compress(data));
+    }
+
+}
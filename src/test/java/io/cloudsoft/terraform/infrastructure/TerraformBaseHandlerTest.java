@@ -7,9 +7,16 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import software.amazon.cloudformation.proxy.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
@@ -50,6 +57,99 @@ public class TerraformBaseHandlerTest {
     }
 
 
+    /** Records what would be written to the log bucket. */
+    public static class LoggingWorker extends EmptyWorker {
+        final Map<String, String> uploads = new LinkedHashMap<>();
+
+        public LoggingWorker() {
+            storeMetadataOnServer = false;
+        }
+
+        @Override
+        protected void putLog(String bucketName, String objectKey, String text) {
+            // recorded relative to the folder for the command
+            synchronized (uploads) {
+                uploads.put(objectKey.substring(objectKey.indexOf("-Empty/") + "-Empty/".length()), text);
+            }
+        }
+    }
+
+    private enum OneStep { ONLY }
+
+    /** Has a step which would upload the configuration, but doesn't, so the prefetched configuration goes unused. */
+    public static class ConfigurationWorker extends TerraformBaseWorker<OneStep> {
+        final AtomicInteger opened = new AtomicInteger(), closed = new AtomicInteger();
+
+        public ConfigurationWorker() {
+            super("Configuration", OneStep.class);
+            storeMetadataOnServer = false;
+            setParameters(new TerraformParameters(null, null, null, null) {
+                @Override
+                public String getHost() {
+                    throw new IllegalStateException("No server in this test");
+                }
+
+                @Override
+                public long getConfigurationMaxBytes() {
+                    return 1024;
+                }
+
+                @Override
+                public int getConfigurationDownloadTimeoutSeconds() {
+                    return 1;
+                }
+
+                @Override
+                public ConfigurationSource getConfigurationSource(ResourceModel model, long maxLength, int timeoutSeconds, String previousFingerprint) {
+                    opened.incrementAndGet();
+                    return new ConfigurationSource("test", new ByteArrayInputStream(new byte[] { 1 }) {
+                        @Override
+                        public void close() {
+                            closed.incrementAndGet();
+                        }
+                    }, 1, maxLength);
+                }
+            });
+        }
+
+        @Override
+        protected boolean needsConfiguration(OneStep step) {
+            return true;
+        }
+
+        @Override
+        public ProgressEvent<ResourceModel, CallbackContext> runStep() {
+            return statusSuccess();
+        }
+    }
+
+    private enum ChainedSteps { FIRST, SECOND, WAIT }
+
+    /** Advances through two steps then waits. */
+    public static class ChainingWorker extends TerraformBaseWorker<ChainedSteps> {
+        final List<ChainedSteps> run = new ArrayList<>();
+
+        public ChainingWorker() {
+            super("Chaining", ChainedSteps.class);
+            storeMetadataOnServer = false;
+        }
+
+        @Override
+        public ProgressEvent<ResourceModel, CallbackContext> runStep() {
+            run.add(currentStep);
+            switch (currentStep) {
+                case FIRST:
+                    advanceTo(ChainedSteps.SECOND);
+                    return statusInProgress();
+                case SECOND:
+                    advanceTo(ChainedSteps.WAIT);
+                    return statusInProgress();
+                default:
+                    return statusInProgress();
+            }
+        }
+    }
+
     @Mock
     Logger logger;
 
@@ -94,6 +194,174 @@ public class TerraformBaseHandlerTest {
         assertThrows(IllegalStateException.class, () -> lastHandler.w.init(null, null, null, logger));
     }
 
+    @Test
+    public void unusedPrefetchedConfigurationIsClosed() {
+        final ConfigurationWorker w = new ConfigurationWorker();
+        final TerraformBaseHandler h = new TerraformBaseHandler() {
+            @Override
+            protected TerraformBaseWorker<?> newWorker() {
+                return w;
+            }
+        };
+        final ProgressEvent<ResourceModel, CallbackContext> result = h.handleRequest(null,
+            ResourceHandlerRequest.<ResourceModel>builder().desiredResourceState(ResourceModel.builder().build()).build(),
+            new CallbackContext(), logger);
+
+        assertEquals(OperationStatus.SUCCESS, result.getStatus());
+        assertEquals(1, w.opened.get());
+        assertEquals(1, w.closed.get());
+    }
+
+    @Test
+    public void stepsAreChainedUntilOneWaits() {
+        final ChainingWorker w = new ChainingWorker();
+        w.init(null, ResourceHandlerRequest.<ResourceModel>builder().desiredResourceState(ResourceModel.builder().build()).build(),
+            new CallbackContext(), logger);
+        final ProgressEvent<ResourceModel, CallbackContext> result = w.runHandlingError();
+
+        assertEquals(OperationStatus.IN_PROGRESS, result.getStatus());
+        assertEquals(Arrays.asList(ChainedSteps.FIRST, ChainedSteps.SECOND, ChainedSteps.WAIT), w.run);
+        assertEquals(ChainedSteps.WAIT.name(), result.getCallbackContext().stepId);
+    }
+
+    @Test
+    public void stepsAreNotChainedWithoutTimeLeft() {
+        final ChainingWorker w = new ChainingWorker();
+        w.invocationTimeLimitMillis = 0;
+        w.init(null, ResourceHandlerRequest.<ResourceModel>builder().desiredResourceState(ResourceModel.builder().build()).build(),
+            new CallbackContext(), logger);
+        final ProgressEvent<ResourceModel, CallbackContext> result = w.runHandlingError();
+
+        assertEquals(OperationStatus.IN_PROGRESS, result.getStatus());
+        assertEquals(Arrays.asList(ChainedSteps.FIRST), w.run);
+        assertEquals(ChainedSteps.SECOND.name(), result.getCallbackContext().stepId);
+    }
+
+    @Test
+    public void delayFollowsExpectedDurationOfRunningCommand() {
+        final EmptyWorker w = new EmptyWorker();
+        final CallbackContext callbackContext = new CallbackContext();
+        callbackContext.lastDelaySeconds = 8;
+        callbackContext.runningCommand = "TF_APPLY";
+        callbackContext.commandDurations.put("TF_APPLY", 3600L);
+
+        // early on, checks are sparse, but not longer apart than it has been running, in case it is faster this time
+        callbackContext.runningCommandStartMillis = System.currentTimeMillis() - 60_000;
+        assertEquals(60, w.nextDelay(callbackContext));
+        callbackContext.runningCommandStartMillis = System.currentTimeMillis() - 1_800_000;
+        assertEquals(600, w.nextDelay(callbackContext));
+        // closer together towards the expected end
+        callbackContext.runningCommandStartMillis = System.currentTimeMillis() - 3_540_000;
+        assertEquals(20, w.nextDelay(callbackContext));
+        // and never past it
+        callbackContext.runningCommandStartMillis = System.currentTimeMillis() - 3_595_000;
+        assertEquals(5, w.nextDelay(callbackContext));
+        // then as usual once it is overdue
+        callbackContext.runningCommandStartMillis = System.currentTimeMillis() - 4_000_000;
+        assertEquals(10, w.nextDelay(callbackContext));
+
+        // or for commands not seen before
+        callbackContext.runningCommand = "TF_INIT";
+        callbackContext.runningCommandStartMillis = System.currentTimeMillis();
+        assertEquals(10, w.nextDelay(callbackContext));
+    }
+
+    @Test
+    public void userLogIsWrittenAsOneSegmentPerInvocationWithIndex() {
+        final CallbackContext callbackContext = new CallbackContext();
+        callbackContext.logBucketName = "test-bucket";
+        final ResourceHandlerRequest<ResourceModel> request = ResourceHandlerRequest.<ResourceModel>builder()
+            .desiredResourceState(ResourceModel.builder().identifier("test-model").build()).build();
+
+        for (int i=1; i<=2; i++) {
+            final LoggingWorker w = new LoggingWorker();
+            w.init(null, request, callbackContext, logger);
+            final ProgressEvent<ResourceModel, CallbackContext> result = w.runHandlingError();
+            assertEquals(result.getMessage(), OperationStatus.SUCCESS, result.getStatus());
+
+            assertEquals(2, w.uploads.size());
+            final String segment = w.uploads.get(String.format("cfn-log/%05d.txt", i));
+            assertTrue(segment, segment.contains("Empty command requested"));
+            assertTrue(segment, segment.contains("SUCCESS"));
+            assertEquals(i, (int) callbackContext.logSegments.get(TerraformBaseWorker.USER_LOG_FOLDER));
+        }
+        final LoggingWorker w = new LoggingWorker();
+        w.init(null, request, callbackContext, logger);
+        w.runHandlingError();
+        assertEquals("cfn-log/00001.txt\ncfn-log/00002.txt\ncfn-log/00003.txt\n", w.uploads.get("cfn-log/index.txt"));
+    }
+
+    @Test
+    public void terraformOutputIsWrittenAsOneSegmentPerInvocation() {
+        final CallbackContext callbackContext = new CallbackContext();
+        callbackContext.logBucketName = "test-bucket";
+        final LoggingWorker w = new LoggingWorker();
+        w.init(null, ResourceHandlerRequest.<ResourceModel>builder()
+            .desiredResourceState(ResourceModel.builder().identifier("test-model").build()).build(), callbackContext, logger);
+        // as read by several probes
+        w.appendLogSegment("TF_APPLY-stdout/", "one\n");
+        w.appendLogSegment("TF_APPLY-stdout/", "two\n");
+        w.appendLogSegment("TF_APPLY-stderr/", "warning\n");
+        w.runHandlingError();
+
+        assertEquals("one\ntwo\n", w.uploads.get("TF_APPLY-stdout/00001.txt"));
+        assertEquals("TF_APPLY-stdout/00001.txt\n", w.uploads.get("TF_APPLY-stdout/index.txt"));
+        assertEquals("warning\n", w.uploads.get("TF_APPLY-stderr/00001.txt"));
+        Assert.assertNull(w.uploads.get("TF_APPLY-stdout/00002.txt"));
+    }
+
+    @Test
+    public void failedBackgroundLogWriteDisablesLogsBeforeReturning() {
+        final CallbackContext callbackContext = new CallbackContext();
+        callbackContext.logBucketName = "test-bucket";
+        final LoggingWorker w = new LoggingWorker() {
+            @Override
+            protected void putLog(String bucketName, String objectKey, String text) {
+                throw new IllegalStateException("No such bucket");
+            }
+        };
+        w.init(null, ResourceHandlerRequest.<ResourceModel>builder()
+            .desiredResourceState(ResourceModel.builder().identifier("test-model").build()).build(), callbackContext, logger);
+        w.runHandlingError();
+
+        Assert.assertNull(callbackContext.logBucketName);
+        Assert.assertNull(w.getModel().getLogBucketUrl());
+    }
+
+    @Test
+    public void firstLogSegmentIsWrittenAgainOnceBucketIsCreated() {
+        final CallbackContext callbackContext = new CallbackContext();
+        callbackContext.logBucketName = "test-bucket";
+        final boolean[] bucketExists = { false };
+        final LoggingWorker w = new LoggingWorker() {
+            @Override
+            protected void putLog(String bucketName, String objectKey, String text) {
+                if (!bucketExists[0]) {
+                    throw new IllegalStateException("No such bucket");
+                }
+                super.putLog(bucketName, objectKey, text);
+            }
+        };
+        w.init(null, ResourceHandlerRequest.<ResourceModel>builder()
+            .desiredResourceState(ResourceModel.builder().identifier("test-model").build()).build(), callbackContext, logger);
+
+        // as on create: the write fails, so the bucket is created and the write tried again
+        assertEquals(false, w.initLogBucketFirstMessage());
+        Assert.assertNull(callbackContext.logBucketName);
+        assertEquals(0, (int) callbackContext.logSegments.getOrDefault(TerraformBaseWorker.USER_LOG_FOLDER, 0));
+
+        callbackContext.logBucketName = "test-bucket";
+        bucketExists[0] = true;
+        assertEquals(true, w.initLogBucketFirstMessage());
+
+        assertEquals(1, (int) callbackContext.logSegments.get(TerraformBaseWorker.USER_LOG_FOLDER));
+        assertEquals("cfn-log/00001.txt\n", w.uploads.get("cfn-log/index.txt"));
+        final String segment = w.uploads.get("cfn-log/00001.txt");
+        assertTrue(segment, segment.contains("Empty command requested"));
+        assertEquals(segment, segment.indexOf("Empty command requested"), segment.lastIndexOf("Empty command requested"));
+        Assert.assertNull(w.uploads.get("cfn-log/00002.txt"));
+    }
+
     @Test
     public void logPrintsOutMessages() throws IOException {
         runEmptyHandlerWithDefaults();
@@ -2,6 +2,7 @@ package io.cloudsoft.terraform.infrastructure;
 
 import static junit.framework.Assert.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
@@ -11,10 +12,15 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.function.Function;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
@@ -22,17 +28,23 @@ import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
-import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.http.AbortableInputStream;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.ssm.SsmClient;
 import software.amazon.awssdk.services.ssm.model.GetParameterRequest;
 import software.amazon.awssdk.services.ssm.model.GetParameterResponse;
+import software.amazon.awssdk.services.ssm.model.GetParametersByPathRequest;
+import software.amazon.awssdk.services.ssm.model.GetParametersByPathResponse;
 import software.amazon.awssdk.services.ssm.model.Parameter;
 import software.amazon.awssdk.services.ssm.model.ParameterNotFoundException;
 import software.amazon.cloudformation.proxy.AmazonWebServicesClientProxy;
 
+import com.sun.net.httpserver.HttpServer;
+
 public class TerraformParametersTest {
 
     @Mock
@@ -52,6 +64,7 @@ public class TerraformParametersTest {
         ssmClient = mock(SsmClient.class);
         s3Client = mock(S3Client.class);
         parameters = new TerraformParameters(null, proxy, ssmClient, s3Client);
+        TerraformParameters.invalidateCachedParameters();
     }
 
     @Test
@@ -152,6 +165,30 @@ public class TerraformParametersTest {
         verify(proxy, times(1)).injectCredentialsAndInvokeV2(eq(expectedGetParameterRequest), any());
     }
 
+    @Test
+    public void getSshConnectionIdleSecondsReturns300IfNotFound() {
+        whenProxyGetParameterCallSsmGetParameter();
+        when(ssmClient.getParameter(any(GetParameterRequest.class))).thenThrow(ParameterNotFoundException.builder().build());
+
+        assertEquals(300, parameters.getSshConnectionIdleSeconds());
+    }
+
+    @Test
+    public void getSshCommandTimeoutSecondsReturns30IfNotFound() {
+        whenProxyGetParameterCallSsmGetParameter();
+        when(ssmClient.getParameter(any(GetParameterRequest.class))).thenThrow(ParameterNotFoundException.builder().build());
+
+        assertEquals(30, parameters.getSshCommandTimeoutSeconds());
+    }
+
+    @Test
+    public void getLogsCompressionReturnsNoneIfNotFound() {
+        whenProxyGetParameterCallSsmGetParameter();
+        when(ssmClient.getParameter(any(GetParameterRequest.class))).thenThrow(ParameterNotFoundException.builder().build());
+
+        assertEquals("none", parameters.getLogsCompression());
+    }
+
     @Test
     public void getPortThrowsIfGetParameterThrowsOtherError() {
         final GetParameterRequest expectedGetParameterRequest = GetParameterRequest.builder()
@@ -258,21 +295,78 @@ public class TerraformParametersTest {
     }
 
     @Test
-    public void getConfigurationReturnConfigurationContentProperty() {
+    public void parametersAreReadTogetherByPath() {
+        when(proxy.injectCredentialsAndInvokeV2(any(GetParametersByPathRequest.class), any())).then(
+            ctx -> ssmClient.getParametersByPath((GetParametersByPathRequest)ctx.getArgument(0)));
+        when(ssmClient.getParametersByPath(any(GetParametersByPathRequest.class))).thenReturn(
+            GetParametersByPathResponse.builder().parameters(
+                Parameter.builder().name("/cfn/terraform/ssh-host").value("acme.com").build(),
+                Parameter.builder().name("/cfn/terraform/ssh-port").value("2222").build()).build());
+
+        assertEquals("acme.com", parameters.getHost());
+        assertEquals(2222, parameters.getPort());
+        assertEquals(300, parameters.getSshConnectionIdleSeconds());
+        assertThrows(ConnectorHandlerFailures.Unhandled.class, () -> {
+            parameters.getUsername();
+        });
+        verify(ssmClient, times(1)).getParametersByPath(any(GetParametersByPathRequest.class));
+        verify(ssmClient, times(0)).getParameter(any(GetParameterRequest.class));
+    }
+
+    @Test
+    public void parametersAreCachedForLaterInstancesUntilRefreshed() {
+        when(proxy.injectCredentialsAndInvokeV2(any(GetParametersByPathRequest.class), any())).then(
+            ctx -> ssmClient.getParametersByPath((GetParametersByPathRequest)ctx.getArgument(0)));
+        when(ssmClient.getParametersByPath(any(GetParametersByPathRequest.class))).thenReturn(
+            GetParametersByPathResponse.builder().parameters(
+                Parameter.builder().name("/cfn/terraform/ssh-host").value("acme.com").build()).build());
+
+        assertEquals("acme.com", parameters.getHost());
+        assertEquals("acme.com", new TerraformParameters(null, proxy, ssmClient, s3Client).getHost());
+        verify(ssmClient, times(1)).getParametersByPath(any(GetParametersByPathRequest.class));
+
+        parameters.refresh();
+        assertEquals("acme.com", parameters.getHost());
+        verify(ssmClient, times(2)).getParametersByPath(any(GetParametersByPathRequest.class));
+    }
+
+    @Test
+    public void parametersAreReadIndividuallyIfByPathFails() {
+        when(proxy.injectCredentialsAndInvokeV2(any(GetParametersByPathRequest.class), any())).thenThrow(new IllegalStateException("denied"));
+        whenProxyGetParameterCallSsmGetParameter();
+        when(ssmClient.getParameter(any(GetParameterRequest.class))).thenReturn(GetParameterResponse.builder()
+                .parameter(Parameter.builder().value("acme.com").build()).build());
+
+        assertEquals("acme.com", parameters.getHost());
+        assertEquals("acme.com", parameters.getUsername());
+        verify(proxy, times(1)).injectCredentialsAndInvokeV2(any(GetParametersByPathRequest.class), any());
+        verify(ssmClient, times(2)).getParameter(any(GetParameterRequest.class));
+    }
+
+    private byte[] readConfiguration(ResourceModel model) throws IOException {
+        try (ConfigurationSource source = parameters.getConfigurationSource(model, Long.MAX_VALUE, 5, null)) {
+            final byte[] result = IOUtils.toByteArray(source.getInputStream());
+            source.verify(null);
+            return result;
+        }
+    }
+
+    @Test
+    public void getConfigurationReturnConfigurationContentProperty() throws IOException {
         final String configurationContent = "Hello world";
         final ResourceModel model = ResourceModel.builder().configurationContent(configurationContent).build();
 
-        byte[] result = parameters.getConfiguration(model);
+        byte[] result = readConfiguration(model);
         assertArrayEquals(configurationContent.getBytes(StandardCharsets.UTF_8), result);
     }
 
     @Test
-    public void getConfigurationReturnsDownloadedConfigurationFromUrlProperty() {
+    public void getConfigurationReturnsDownloadedConfigurationFromUrlProperty() throws IOException {
         final String configurationUrl = "http://www.mocky.io/v2/5dc19cab33000051e91a5437";
         final ResourceModel model = ResourceModel.builder().configurationUrl(configurationUrl).build();
 
         String expected = "Hello world";
-        byte[] result = parameters.getConfiguration(model);
+        byte[] result = readConfiguration(model);
 
         assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), result);
     }
@@ -283,41 +377,107 @@ public class TerraformParametersTest {
         final ResourceModel model = ResourceModel.builder().configurationUrl(configurationUrl).build();
 
         assertThrows(ConnectorHandlerFailures.Unhandled.class, () -> {
-            parameters.getConfiguration(model);
+            readConfiguration(model);
         });
     }
 
     @SuppressWarnings("unchecked")
     @Test
-    public void getConfigurationReturnsDownloadedConfigurationFromS3PathProperty() {
+    public void getConfigurationReturnsDownloadedConfigurationFromS3PathProperty() throws IOException {
         final String expectedBucket = "my-bucket";
         final String expectedKey = "hello-world.txt";
         final String expectedContent = "Hello world";
         final String configurationS3Path = String.format("s3://%s/%s", expectedBucket, expectedKey);
         final ResourceModel model = ResourceModel.builder().configurationS3Path(configurationS3Path).build();
 
-        when(proxy.injectCredentialsAndInvokeV2(any(), any())).thenAnswer(new Answer<Object>() {
+        when(proxy.injectCredentialsAndInvokeV2InputStream(any(), any())).thenAnswer(new Answer<Object>() {
             @Override
             public Object answer(InvocationOnMock invocation) throws Throwable {
                 return ((Function<Object,Object>)invocation.getArgument(1)).apply(invocation.getArgument(0));
             }
         });
-        when(s3Client.getObject(any(GetObjectRequest.class), any(ResponseTransformer.class))).then(invocationOnMock -> {
-            ResponseTransformer<?,?> transformer = invocationOnMock.getArgument(1);
-            transformer.transform(null, AbortableInputStream.create(new ByteArrayInputStream(expectedContent.getBytes())));
-            return null;
-        });
+        when(s3Client.getObject(any(GetObjectRequest.class))).then(invocationOnMock ->
+            new ResponseInputStream<>(GetObjectResponse.builder().contentLength((long) expectedContent.length()).build(),
+                AbortableInputStream.create(new ByteArrayInputStream(expectedContent.getBytes()))));
 
-        byte[] result = parameters.getConfiguration(model);
-        verify(proxy, times(1)).injectCredentialsAndInvokeV2(any(GetObjectRequest.class), any());
+        byte[] result = readConfiguration(model);
+        verify(proxy, times(1)).injectCredentialsAndInvokeV2InputStream(any(GetObjectRequest.class), any());
         ArgumentCaptor<GetObjectRequest> argument = ArgumentCaptor.forClass(GetObjectRequest.class);
-        verify(s3Client, times(1)).getObject(argument.capture(), any(ResponseTransformer.class));
+        verify(s3Client, times(1)).getObject(argument.capture());
 
         assertArrayEquals(expectedContent.getBytes(StandardCharsets.UTF_8), result);
         assertEquals(expectedBucket, argument.getValue().bucket());
         assertEquals(expectedKey, argument.getValue().key());
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void getConfigurationSourceReturnsNullIfS3ObjectNotModified() {
+        final String configurationS3Path = "s3://my-bucket/hello-world.txt";
+        final ResourceModel model = ResourceModel.builder().configurationS3Path(configurationS3Path).build();
+
+        when(proxy.injectCredentialsAndInvokeV2InputStream(any(), any())).thenAnswer(invocation ->
+            ((Function<Object,Object>)invocation.getArgument(1)).apply(invocation.getArgument(0)));
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenThrow(S3Exception.builder().statusCode(304).build());
+
+        assertNull(parameters.getConfigurationSource(model, 1024, 5, configurationS3Path + " etag \"abc\" version 1"));
+        ArgumentCaptor<GetObjectRequest> argument = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(s3Client, times(1)).getObject(argument.capture());
+        assertEquals("\"abc\"", argument.getValue().ifNoneMatch());
+        assertEquals(Duration.ofSeconds(5), argument.getValue().overrideConfiguration().get().apiCallTimeout().get());
+    }
+
+    @Test
+    public void getConfigurationSourceReturnsNullIfUrlNotModified() throws Exception {
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/main.tf", exchange -> {
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                final byte[] body = "Hello world".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            final String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/main.tf";
+            final ResourceModel model = ResourceModel.builder().configurationUrl(url).build();
+
+            final String fingerprint;
+            try (ConfigurationSource source = parameters.getConfigurationSource(model, 1024, 5, null)) {
+                assertEquals("Hello world", IOUtils.toString(source.getInputStream(), StandardCharsets.UTF_8));
+                fingerprint = source.getFingerprint();
+            }
+            assertEquals(url + " etag \"v1\"", fingerprint);
+            assertNull(parameters.getConfigurationSource(model, 1024, 5, fingerprint));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void getFingerprintFieldReadsValueForSameSourceOnly() {
+        assertEquals("\"abc\"", TerraformParameters.getFingerprintField("s3://b/k etag \"abc\" version 1", "s3://b/k", "etag"));
+        assertEquals("123", TerraformParameters.getFingerprintField("http://h/f modified 123", "http://h/f", "modified"));
+        assertNull(TerraformParameters.getFingerprintField("http://h/f modified 123", "http://h/f", "etag"));
+        assertNull(TerraformParameters.getFingerprintField("s3://b/k etag x", "s3://b/other", "etag"));
+        assertNull(TerraformParameters.getFingerprintField(null, "s3://b/k", "etag"));
+    }
+
+    @Test
+    public void getConfigurationSourceThrowsIfContentExceedsLimit() {
+        final ResourceModel model = ResourceModel.builder().configurationContent("Hello world").build();
+
+        assertThrows(ConnectorHandlerFailures.Unhandled.class, () -> {
+            parameters.getConfigurationSource(model, 5, 5, null);
+        });
+    }
+
     @Test
     public void getConfigurationThrowsIfS3PathIsInvalid() {
         final String configurationS3Path = "http://acme.com/does/not/exist";
@@ -326,7 +486,7 @@ public class TerraformParametersTest {
         when(proxy.injectCredentialsAndInvokeV2(any(), any())).then(InvocationOnMock::callRealMethod);
 
         assertThrows(ConnectorHandlerFailures.Unhandled.class, () -> {
-            parameters.getConfiguration(model);
+            readConfiguration(model);
         });
     }
 
@@ -339,7 +499,7 @@ public class TerraformParametersTest {
         when(s3Client.getObject((GetObjectRequest)any(), (Path)any())).thenThrow(IllegalArgumentException.class);
 
         assertThrows(ConnectorHandlerFailures.Unhandled.class, () -> {
-            parameters.getConfiguration(model);
+            readConfiguration(model);
         });
     }
 
@@ -350,7 +510,7 @@ public class TerraformParametersTest {
         when(proxy.injectCredentialsAndInvokeV2(any(), any())).then(InvocationOnMock::callRealMethod);
 
         assertThrows(ConnectorHandlerFailures.Unhandled.class, () -> {
-            parameters.getConfiguration(model);
+            readConfiguration(model);
         });
     }
 }
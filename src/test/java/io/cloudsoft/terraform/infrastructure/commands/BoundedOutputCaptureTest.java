@@ -0,0 +1,32 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class BoundedOutputCaptureTest {
+
+    @Test
+    public void keepsEverythingWhenSmall() {
+        BoundedOutputCapture capture = new BoundedOutputCapture(4, 4);
+        capture.write("abcdefg".getBytes(StandardCharsets.UTF_8), 0, 7);
+
+        assertEquals(7, capture.size());
+        assertEquals("abcdefg", capture.toString());
+    }
+
+    @Test
+    public void keepsHeadAndTailWhenLarge() {
+        BoundedOutputCapture capture = new BoundedOutputCapture(4, 4);
+        for (char c : "abcdefghijklmnop".toCharArray()) {
+            capture.write(c);
+        }
+        capture.write("qrstu".getBytes(StandardCharsets.UTF_8), 0, 5);
+
+        assertEquals(21, capture.size());
+        assertEquals("abcd\n... [13 bytes omitted] ...\nrstu", capture.toString());
+    }
+
+}
@@ -0,0 +1,66 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class ConfigurationManifestTest {
+
+    private static final String HASH_A = "87428fc522803d31065e7bce3cf03fe475096631e5e07bbd7a0fde60c4cf25c7";
+    private static final String HASH_B = "0263829989b6fd954f72baaf2fc64bc2e2f01d692d4de72986ea808f6e99813f";
+
+    @Test
+    public void parsesHeadersAndFiles() {
+        ConfigurationManifest manifest = ConfigurationManifest.parse(String.join("\n",
+            "#source s3://bucket/key.zip etag \"abc\"",
+            "#sha256 " + HASH_A,
+            "#vars none",
+            HASH_A + "  a.tf",
+            HASH_B + " *sub/b c.tf",
+            "#intact yes",
+            ""));
+
+        assertEquals("s3://bucket/key.zip etag \"abc\"", manifest.getSourceFingerprint());
+        assertEquals(HASH_A, manifest.getContentSha256());
+        assertEquals(ConfigurationManifest.NONE, manifest.getVarsSha256());
+        assertTrue(manifest.isIntact());
+        assertEquals(2, manifest.getFiles().size());
+        assertEquals(HASH_B, manifest.getFiles().get("sub/b c.tf"));
+    }
+
+    @Test
+    public void ignoresFilesOutsideWorkDirectory() {
+        ConfigurationManifest manifest = ConfigurationManifest.parse(String.join("\n",
+            HASH_A + "  a..b.tf",
+            HASH_A + "  ../x.tf",
+            HASH_A + "  a/../../x.tf",
+            HASH_A + "  /etc/x.tf",
+            ""));
+
+        assertEquals(Collections.singleton("a..b.tf"), manifest.getFiles().keySet());
+    }
+
+    @Test
+    public void unsafePathPatternMatchesUnsafePaths() {
+        final Pattern unsafe = Pattern.compile(ConfigurationManifest.UNSAFE_PATH_PATTERN);
+        for (String path : Arrays.asList("a.tf", "sub/a.tf", "a..b.tf", "..a/b.tf", "../x.tf", "a/../../x.tf", "a/..", "..", "/etc/x.tf")) {
+            assertEquals(!ConfigurationManifest.isSafePath(path), unsafe.matcher(path).find(), path);
+        }
+        assertTrue(ConfigurationManifest.isSafePath("..a/b.tf"));
+        assertFalse(ConfigurationManifest.isSafePath("a/.."));
+    }
+
+    @Test
+    public void isNotIntactUnlessConfirmed() {
+        assertFalse(ConfigurationManifest.parse("#sha256 " + HASH_A + "\n" + HASH_A + "  a.tf\n").isIntact());
+        assertNull(ConfigurationManifest.parse(""));
+    }
+
+}
@@ -0,0 +1,148 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+public class ConfigurationZipDeltaTest {
+
+    // sha256 of "a\n"
+    private static final String HASH_A = "87428fc522803d31065e7bce3cf03fe475096631e5e07bbd7a0fde60c4cf25c7";
+
+    private static byte[] zip(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("sub/"));
+            zip.closeEntry();
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(namesAndContents[i]));
+                zip.write(namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Marks every entry in the central directory as made on unix, with the given mode for the given names. */
+    private static byte[] withUnixModes(byte[] archive, Map<String, Integer> modes) {
+        ByteBuffer buf = ByteBuffer.wrap(archive).order(ByteOrder.LITTLE_ENDIAN);
+        for (int pos = 0; pos + 46 < archive.length; pos++) {
+            if (buf.getInt(pos) == 0x02014b50) {
+                String name = new String(archive, pos + 46, buf.getShort(pos + 28), StandardCharsets.UTF_8);
+                buf.putShort(pos + 4, (short) (3 << 8 | 20));
+                buf.putInt(pos + 38, modes.getOrDefault(name, 0644) << 16);
+            }
+        }
+        return archive;
+    }
+
+    @Test
+    public void writesOnlyAddedAndChangedFiles() throws IOException {
+        Map<String, String> installed = new HashMap<>();
+        installed.put("a.tf", HASH_A);
+        installed.put("b.tf", HASH_A);
+        installed.put("gone.tf", HASH_A);
+        byte[] archive = zip("a.tf", "a\n", "b.tf", "b\n", "sub/c.tf", "c\n");
+
+        ConfigurationZipDelta delta = new ConfigurationZipDelta(installed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(archive);
+        delta.write(in, out);
+
+        assertEquals(0, in.available());
+        assertEquals(Arrays.asList("a.tf", "b.tf", "sub/c.tf"), Arrays.asList(delta.getFiles().keySet().toArray()));
+        assertEquals(HASH_A, delta.getFiles().get("a.tf"));
+        assertEquals(Arrays.asList("b.tf", "sub/c.tf"), delta.getChanged());
+        assertEquals(Collections.singletonList("gone.tf"), delta.getRemoved());
+
+        try (ZipInputStream written = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertEquals("b.tf", written.getNextEntry().getName());
+            assertEquals("sub/c.tf", written.getNextEntry().getName());
+            assertNull(written.getNextEntry());
+        }
+    }
+
+    @Test
+    public void skipsFilesOutsideWorkDirectory() throws IOException {
+        Map<String, String> installed = new HashMap<>();
+        installed.put("a.tf", HASH_A);
+        installed.put("../outside.tf", HASH_A);
+        byte[] archive = zip("a.tf", "a\n", "../x.tf", "x\n", "sub/../../y.tf", "y\n", "/etc/z.tf", "z\n");
+
+        ConfigurationZipDelta delta = new ConfigurationZipDelta(installed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        delta.write(new ByteArrayInputStream(archive), out);
+
+        assertEquals(Collections.singleton("a.tf"), delta.getFiles().keySet());
+        assertEquals(Arrays.asList("../x.tf", "sub/../../y.tf", "/etc/z.tf"), delta.getSkipped());
+        assertEquals(Collections.emptyList(), delta.getChanged());
+        assertEquals(Collections.emptyList(), delta.getRemoved());
+    }
+
+    @Test
+    public void recordsUnixModesOfFiles() throws IOException {
+        Map<String, Integer> modes = new HashMap<>();
+        modes.put("run.sh", 0755);
+        byte[] archive = withUnixModes(zip("a.tf", "a\n", "run.sh", "#!/bin/sh\n"), modes);
+
+        ConfigurationZipDelta delta = new ConfigurationZipDelta(Collections.singletonMap("run.sh", HASH_A));
+        ByteArrayInputStream in = new ByteArrayInputStream(archive);
+        delta.write(in, new ByteArrayOutputStream());
+
+        assertEquals(0, in.available());
+        assertEquals(Integer.valueOf(0644), delta.getModes().get("a.tf"));
+        assertEquals(Integer.valueOf(0755), delta.getModes().get("run.sh"));
+        assertEquals(2, delta.getModes().size());
+    }
+
+    @Test
+    public void recordsModesOnlyWhereArchiveWasMadeOnUnix() throws IOException {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            big.append("# line ").append(i).append("\n");
+        }
+        String[] namesAndContents = new String[200];
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            namesAndContents[i] = "sub/file-with-a-long-name-" + i + ".tf";
+            namesAndContents[i + 1] = i == 0 ? big.toString() : "x\n";
+        }
+        ConfigurationZipDelta delta = new ConfigurationZipDelta(Collections.emptyMap());
+        delta.write(new ByteArrayInputStream(zip(namesAndContents)), new ByteArrayOutputStream());
+        assertEquals(100, delta.getFiles().size());
+        assertTrue(delta.getModes().isEmpty());
+
+        delta = new ConfigurationZipDelta(Collections.emptyMap());
+        delta.write(new ByteArrayInputStream(withUnixModes(zip(namesAndContents), Collections.emptyMap())), new ByteArrayOutputStream());
+        assertEquals(100, delta.getModes().size());
+    }
+
+    @Test
+    public void detectsZipWithoutConsumingIt() throws IOException {
+        BufferedInputStream zip = new BufferedInputStream(new ByteArrayInputStream(zip("a.tf", "a\n")));
+        BufferedInputStream text = new BufferedInputStream(new ByteArrayInputStream("resource x {}".getBytes(StandardCharsets.UTF_8)));
+
+        assertTrue(ConfigurationZipDelta.isZip(zip));
+        assertEquals('P', zip.read());
+        assertFalse(ConfigurationZipDelta.isZip(text));
+        assertEquals('r', text.read());
+    }
+
+}
@@ -0,0 +1,208 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.cloudsoft.terraform.infrastructure.TerraformParameters;
+import io.cloudsoft.terraform.infrastructure.commands.RemoteDetachedTerraformProcess.TerraformCommand;
+
+/** Runs the script for a multi-stage process with a local shell, with stand-ins for Terraform,
+ * checking each stage gets its own logs and exit status and that the one which failed is found,
+ * and that init is skipped, or uses the shared cache, as it should. */
+public class RemoteDetachedTerraformProcessStagesTest {
+
+    private static final String FAKE_INIT = "mkdir -p .terraform && echo initialized";
+
+    // stands in for init with a plugin cache: installs a provider into the cache, unless there, linking it from
+    // .terraform as Terraform does, and installs a module unless one is there
+    private static final String FAKE_CACHING_INIT = String.join(" ; ",
+        "p=$TF_PLUGIN_CACHE_DIR/registry.terraform.io/hashicorp/aws/3.0.0/linux_amd64",
+        "[ -d $p ] || { mkdir -p $p && echo provider > $p/terraform-provider-aws && echo downloaded provider ; }",
+        "mkdir -p .terraform/providers/registry.terraform.io/hashicorp/aws/3.0.0",
+        "ln -sfn $p .terraform/providers/registry.terraform.io/hashicorp/aws/3.0.0/linux_amd64",
+        "[ -f .terraform/modules/modules.json ] || { mkdir -p .terraform/modules && echo '{}' > .terraform/modules/modules.json && echo downloaded modules ; }");
+
+    private static File baseDir;
+    private static String initCommand, applyCommand;
+    private SshToolbox ssh;
+    private RemoteDetachedTerraformProcessNohup process;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        baseDir = Files.createTempDirectory("stages-test").toFile();
+        TerraformParameters params = mock(TerraformParameters.class);
+        when(params.getHost()).thenReturn("localhost");
+        when(params.getUsername()).thenReturn("nobody");
+        when(params.getSSHKey()).thenReturn("not a real key");
+        ssh = new SshToolbox(params, message -> System.out.println("LOG: " + message));
+        initCommand = FAKE_INIT;
+        process = newProcess("model");
+    }
+
+    private RemoteDetachedTerraformProcessNohup newProcess(String modelIdentifier) throws IOException {
+        final RemoteDetachedTerraformProcessNohup result = new RemoteDetachedTerraformProcessNohup(ssh, null, TerraformCommand.TF_INIT_AND_APPLY, modelIdentifier, "cmd") {
+            @Override
+            protected String getBaseDir() {
+                return baseDir.getAbsolutePath();
+            }
+
+            @Override
+            protected String getTerraformCommand(TerraformCommand stage) {
+                return stage == TerraformCommand.TF_INIT ? initCommand : applyCommand;
+            }
+        };
+        Files.createDirectories(Paths.get(result.getWorkDir()));
+        return result;
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    private String read(TerraformCommand stage, String trailer) throws IOException {
+        return read(process, stage, trailer);
+    }
+
+    private static String read(RemoteDetachedTerraformProcess process, TerraformCommand stage, String trailer) throws IOException {
+        return new String(Files.readAllBytes(Paths.get(process.getStageFileName(stage, trailer))), StandardCharsets.UTF_8);
+    }
+
+    private String runStagesThenStatus() throws Exception {
+        return runStagesThenStatus(process);
+    }
+
+    private static String runStagesThenStatus(RemoteDetachedTerraformProcess process) throws Exception {
+        SshToolboxBatchTest.runLocally("cd " + process.getWorkDir() + " && ( " + process.getStagesScript() + "\n)");
+        return new String(SshToolboxBatchTest.runLocally(process.getStageStatusCommand()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void stagesHaveSeparateLogsAndStatuses() throws Exception {
+        applyCommand = "echo applied";
+        final String statuses = runStagesThenStatus();
+
+        assertEquals(Arrays.asList(TerraformCommand.TF_INIT, TerraformCommand.TF_APPLY, TerraformCommand.TF_INIT_AND_APPLY), process.getLogStages());
+        assertEquals("initialized\n", read(TerraformCommand.TF_INIT, "stdout.log"));
+        assertEquals("applied\n", read(TerraformCommand.TF_APPLY, "stdout.log"));
+        assertEquals("TF_INIT 0\nTF_APPLY 0\n", statuses);
+        assertNull(process.parseFailedStage(statuses));
+    }
+
+    @Test
+    public void failedStageIsFound() throws Exception {
+        applyCommand = "sh -c 'echo no provider >&2; exit 3'";
+        final String statuses = runStagesThenStatus();
+
+        assertEquals("no provider\n", read(TerraformCommand.TF_APPLY, "stderr.log"));
+        assertEquals("3\n", read(TerraformCommand.TF_APPLY, "exitstatus.log"));
+        assertEquals(TerraformCommand.TF_APPLY, process.parseFailedStage(statuses));
+    }
+
+    private void writeConfiguration(String text) throws IOException {
+        Files.write(Paths.get(process.getWorkDir(), "main.tf"), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void initIsOnlyRunWhenProvidersOrModulesChange() throws Exception {
+        applyCommand = "echo applied";
+        writeConfiguration("module \"vpc\" {\n  source = \"terraform-aws-modules/vpc/aws\"\n  cidr = \"10.0.0.0/16\"\n}\n");
+        runStagesThenStatus();
+        assertEquals("initialized\n", read(TerraformCommand.TF_INIT, "stdout.log"));
+
+        // other settings do not need init
+        writeConfiguration("module \"vpc\" {\n  source = \"terraform-aws-modules/vpc/aws\"\n  cidr = \"10.1.0.0/16\"\n}\n");
+        assertEquals("TF_INIT 0\nTF_APPLY 0\n", runStagesThenStatus());
+        assertTrue(read(TerraformCommand.TF_INIT, "stdout.log").contains("not running init again"));
+        assertEquals("applied\n", read(TerraformCommand.TF_APPLY, "stdout.log"));
+
+        // a new module does
+        writeConfiguration("module \"vpc\" {\n  source = \"terraform-aws-modules/vpc/aws\"\n  version = \"2.0.0\"\n}\n");
+        runStagesThenStatus();
+        assertEquals("initialized\n", read(TerraformCommand.TF_INIT, "stdout.log"));
+
+        // as does a lock file written, or changed, outside init
+        Files.write(Paths.get(process.getWorkDir(), ".terraform.lock.hcl"), "provider \"aws\" {}\n".getBytes(StandardCharsets.UTF_8));
+        runStagesThenStatus();
+        assertEquals("initialized\n", read(TerraformCommand.TF_INIT, "stdout.log"));
+
+        // and init having been lost
+        FileUtils.deleteDirectory(new File(process.getWorkDir(), ".terraform"));
+        runStagesThenStatus();
+        assertEquals("initialized\n", read(TerraformCommand.TF_INIT, "stdout.log"));
+    }
+
+    @Test
+    public void providersAndModulesAreSharedThroughCache() throws Exception {
+        applyCommand = "echo applied";
+        initCommand = FAKE_CACHING_INIT;
+        final String module = "module \"vpc\" {\n  source = \"terraform-aws-modules/vpc/aws\"\n}\n";
+        final RemoteDetachedTerraformProcessNohup other = newProcess("other");
+        process.setCacheMaxSizeMb(100);
+        other.setCacheMaxSizeMb(100);
+        Files.write(Paths.get(process.getWorkDir(), "main.tf"), module.getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(other.getWorkDir(), "main.tf"), module.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("TF_INIT 0\nTF_APPLY 0\n", runStagesThenStatus(process));
+        assertTrue(read(TerraformCommand.TF_INIT, "stdout.log").contains("downloaded provider"));
+        assertTrue(read(TerraformCommand.TF_INIT, "stdout.log").contains("downloaded modules"));
+        // the provider no longer depends on the cache
+        final Path provider = Paths.get(process.getWorkDir(), ".terraform/providers/registry.terraform.io/hashicorp/aws/3.0.0/linux_amd64");
+        assertFalse(Files.isSymbolicLink(provider));
+        assertTrue(Files.isRegularFile(provider.resolve("terraform-provider-aws")));
+
+        assertEquals("TF_INIT 0\nTF_APPLY 0\n", runStagesThenStatus(other));
+        final String otherInit = read(other, TerraformCommand.TF_INIT, "stdout.log");
+        assertTrue(otherInit.contains("Using cached modules"), otherInit);
+        assertFalse(otherInit.contains("downloaded"), otherInit);
+    }
+
+    @Test
+    public void cacheIsPrunedLeastRecentlyUsedFirst() throws Exception {
+        applyCommand = "echo applied";
+        initCommand = FAKE_CACHING_INIT;
+        process.setCacheMaxSizeMb(1);
+        final File modules = new File(baseDir, ".cache/modules");
+        final File older = new File(modules, "older"), newer = new File(modules, "newer");
+        for (File entry : Arrays.asList(older, newer)) {
+            entry.mkdirs();
+            Files.write(new File(entry, "module.tf").toPath(), new byte[600 * 1024]);
+        }
+        older.setLastModified(System.currentTimeMillis() - 3_600_000);
+        newer.setLastModified(System.currentTimeMillis() - 60_000);
+
+        assertEquals("TF_INIT 0\nTF_APPLY 0\n", runStagesThenStatus());
+        assertFalse(older.exists());
+        assertTrue(newer.exists());
+        assertTrue(new File(baseDir, ".cache/plugins/registry.terraform.io/hashicorp/aws/3.0.0/linux_amd64").exists());
+    }
+
+    @Test
+    public void laterStagesAreNotRunAfterFailure() throws Exception {
+        applyCommand = "echo applied";
+        initCommand = "false";
+        final String statuses = runStagesThenStatus();
+
+        assertEquals("TF_INIT 1\n", statuses);
+        assertEquals(TerraformCommand.TF_INIT, process.parseFailedStage(statuses));
+        assertEquals(false, new File(process.getStageFileName(TerraformCommand.TF_APPLY, "stdout.log")).exists());
+    }
+
+}
@@ -0,0 +1,125 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.cloudsoft.terraform.infrastructure.TerraformParameters;
+import io.cloudsoft.terraform.infrastructure.commands.RemoteDetachedTerraformProcess.TerraformCommand;
+
+/** Runs the server-side wait with a local shell (without <code>inotifywait</code>, unless it is installed here),
+ * checking it returns when it should. */
+public class RemoteDetachedTerraformProcessWaitTest {
+
+    private static File baseDir;
+    private RemoteDetachedTerraformProcessNohup process;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        baseDir = Files.createTempDirectory("wait-test").toFile();
+        TerraformParameters params = mock(TerraformParameters.class);
+        when(params.getHost()).thenReturn("localhost");
+        when(params.getUsername()).thenReturn("nobody");
+        when(params.getSSHKey()).thenReturn("not a real key");
+        SshToolbox ssh = new SshToolbox(params, message -> System.out.println("LOG: " + message));
+        process = new RemoteDetachedTerraformProcessNohup(ssh, null, TerraformCommand.TF_APPLY, "model", "cmd") {
+            @Override
+            protected String getBaseDir() {
+                return baseDir.getAbsolutePath();
+            }
+        };
+        Files.createDirectories(Paths.get(process.getWorkDir()));
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    private void writePid(String pid) throws IOException {
+        Files.write(Paths.get(process.getWorkDir(), "terraform-cmd-tf_apply-pid.txt"), pid.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long timeWait(long timeoutSeconds) throws Exception {
+        final long start = System.currentTimeMillis();
+        SshToolboxBatchTest.runLocally(process.getWaitCommand(timeoutSeconds));
+        return System.currentTimeMillis() - start;
+    }
+
+    private static String ownPid() {
+        return ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+    }
+
+    @Test
+    public void returnsOnceProcessHasEnded() throws Exception {
+        writePid("999999999");
+        final long millis = timeWait(10);
+        assertTrue(millis < 5000, "took " + millis + " ms");
+    }
+
+    private void appendLaterToStdout(long delayMillis, int bytes) {
+        new Thread(() -> {
+            try {
+                Thread.sleep(delayMillis);
+                Files.write(Paths.get(process.stdoutLogFileName), new byte[bytes],
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }).start();
+    }
+
+    @Test
+    public void returnsWhenOutputGrowsOnceMinimumIntervalHasPassed() throws Exception {
+        writePid(ownPid());
+        appendLaterToStdout(200, 5);
+        // the minimum interval is measured in whole seconds on the server, so it is at least one second
+        final long millis = timeWait(10);
+        assertTrue(millis >= 1000 && millis < 5000, "took " + millis + " ms");
+    }
+
+    @Test
+    public void returnsAsSoonAsEnoughOutputIsWritten() throws Exception {
+        writePid(ownPid());
+        appendLaterToStdout(200, 8192);
+        final long millis = timeWait(10);
+        assertTrue(millis >= 150 && millis < 1000, "took " + millis + " ms");
+    }
+
+    @Test
+    public void ignoresOtherFilesInWorkDir() throws Exception {
+        writePid(ownPid());
+        new Thread(() -> {
+            try {
+                Thread.sleep(200);
+                Files.write(Paths.get(process.getWorkDir(), "other.txt"), new byte[8192]);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }).start();
+        final long millis = timeWait(2);
+        assertTrue(millis >= 1000 && millis < 5000, "took " + millis + " ms");
+    }
+
+    @Test
+    public void returnsAfterTimeoutWhileRunningWithoutOutput() throws Exception {
+        writePid(ownPid());
+        // the end is measured in whole seconds on the server, so it is at least one second later
+        final long millis = timeWait(2);
+        assertTrue(millis >= 1000 && millis < 5000, "took " + millis + " ms");
+    }
+
+}
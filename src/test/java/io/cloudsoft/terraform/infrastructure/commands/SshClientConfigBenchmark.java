@@ -0,0 +1,31 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.SSHClient;
+
+/** Compares the time taken to create clients with a new default config each time (as before)
+ * and with the shared config from {@link SshClientConfig}. Not a test; run {@link #main(String[])} by hand. */
+public class SshClientConfigBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int clients = 200;
+        // the first of each includes class loading, which is what a cold start pays
+        for (int round = 1; round <= 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                new SSHClient(new DefaultConfig()).close();
+            }
+            final long fresh = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                new SSHClient(SshClientConfig.get(null)).close();
+            }
+            final long shared = System.nanoTime() - start;
+
+            System.out.println(String.format("round %d, %d clients: new config each %.1f ms (%.3f ms/client), shared config %.1f ms (%.3f ms/client)",
+                round, clients, fresh / 1e6, fresh / 1e6 / clients, shared / 1e6, shared / 1e6 / clients));
+        }
+    }
+
+}
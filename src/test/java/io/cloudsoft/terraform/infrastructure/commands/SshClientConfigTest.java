@@ -0,0 +1,58 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import net.schmizz.sshj.Config;
+import net.schmizz.sshj.DefaultConfig;
+
+/** Checks the algorithm order of the shared config. */
+public class SshClientConfigTest {
+
+    @Test
+    public void configIsSharedForSamePreferences() {
+        assertSame(SshClientConfig.get(null), SshClientConfig.get(Collections.emptyList()));
+        assertSame(SshClientConfig.get(null), SshClientConfig.get(SshClientConfig.DEFAULT_PREFERRED_ALGORITHMS));
+        assertNotSame(SshClientConfig.get(null), SshClientConfig.get(Arrays.asList("aes256-ctr")));
+    }
+
+    @Test
+    public void preferredAlgorithmsComeFirst() {
+        final Config config = SshClientConfig.get(null);
+        assertEquals(Arrays.asList("curve25519-sha256", "curve25519-sha256@libssh.org", "ecdh-sha2-nistp256"),
+            SshClientConfig.names(config.getKeyExchangeFactories()).subList(0, 3));
+        assertEquals("ssh-ed25519", SshClientConfig.names(config.getSignatureFactories()).get(0));
+        assertEquals(Arrays.asList("aes128-ctr", "aes256-ctr"), SshClientConfig.names(config.getCipherFactories()).subList(0, 2));
+        assertEquals("hmac-sha2-256-etm@openssh.com", SshClientConfig.names(config.getMACFactories()).get(0));
+    }
+
+    @Test
+    public void otherAlgorithmsAreKeptAfterPreferred() {
+        final DefaultConfig defaults = new DefaultConfig();
+        final Config config = SshClientConfig.get(Arrays.asList("aes256-ctr", "not-an-algorithm"));
+        final List<String> ciphers = SshClientConfig.names(config.getCipherFactories());
+        assertEquals("aes256-ctr", ciphers.get(0));
+        assertEquals(defaults.getCipherFactories().size(), ciphers.size());
+        assertEquals(SshClientConfig.names(defaults.getKeyExchangeFactories()), SshClientConfig.names(config.getKeyExchangeFactories()));
+    }
+
+    @Test
+    public void sharedConfigCannotBeChanged() {
+        assertThrows(UnsupportedOperationException.class, () -> SshClientConfig.get(null).getCipherFactories().clear());
+    }
+
+    @Test
+    public void parsesAlgorithmList() {
+        assertEquals(Arrays.asList("a", "b", "c"), SshClientConfig.parseAlgorithms(" a, b\nc ,"));
+        assertEquals(Collections.emptyList(), SshClientConfig.parseAlgorithms(null));
+    }
+
+}
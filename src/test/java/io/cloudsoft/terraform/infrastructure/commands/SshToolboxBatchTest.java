@@ -0,0 +1,81 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.cloudsoft.terraform.infrastructure.TerraformParameters;
+import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.CommandResult;
+import io.cloudsoft.terraform.infrastructure.commands.SshToolbox.PostRunBehaviour;
+import net.schmizz.sshj.common.IOUtils;
+
+/** Runs the scripts generated for batches with a local shell, checking they report each step correctly. */
+public class SshToolboxBatchTest {
+
+    private SshToolbox ssh;
+
+    @BeforeEach
+    public void setup() {
+        TerraformParameters params = mock(TerraformParameters.class);
+        when(params.getHost()).thenReturn("localhost");
+        when(params.getUsername()).thenReturn("nobody");
+        when(params.getSSHKey()).thenReturn("not a real key");
+        ssh = new SshToolbox(params, message -> System.out.println("LOG: " + message));
+    }
+
+    static byte[] runLocally(String script) throws IOException, InterruptedException {
+        Process p = new ProcessBuilder("sh", "-c", script).redirectErrorStream(false).start();
+        byte[] out = IOUtils.readFully(p.getInputStream()).toByteArray();
+        p.waitFor();
+        return out;
+    }
+
+    @Test
+    public void reportsEachStepSeparately() throws Exception {
+        SshToolbox.Batch batch = ssh.batch()
+            .add("echo one; echo two", PostRunBehaviour.FAIL, PostRunBehaviour.FAIL)
+            .add("printf 'caf\\303\\251'; echo oops >&2; exit 3", PostRunBehaviour.IGNORE, PostRunBehaviour.IGNORE)
+            .add("cat <<EOF\nheredoc\nEOF", PostRunBehaviour.FAIL, PostRunBehaviour.FAIL);
+
+        batch.parseFrames(runLocally(batch.toScript()));
+        List<CommandResult> results = batch.getResults();
+
+        assertEquals(3, results.size());
+        assertEquals((Integer) 0, results.get(0).getExitStatusOrNull());
+        assertEquals("one\ntwo\n", results.get(0).getStdout());
+        assertEquals("", results.get(0).getStderr());
+        assertEquals((Integer) 3, results.get(1).getExitStatusOrNull());
+        assertEquals("caf\u00e9", results.get(1).getStdout());
+        assertEquals("oops\n", results.get(1).getStderr());
+        assertEquals("heredoc\n", results.get(2).getStdout());
+    }
+
+    @Test
+    public void skipsRemainingStepsAfterFailureButRunsFinally() throws Exception {
+        File marker = Files.createTempFile("batch-test", ".marker").toFile();
+        try {
+            SshToolbox.Batch batch = ssh.batch()
+                .add("false", PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE)
+                .add("echo should not run", PostRunBehaviour.FAIL, PostRunBehaviour.IGNORE)
+                .finallyRun("rm " + marker.getAbsolutePath());
+
+            batch.parseFrames(runLocally(batch.toScript()));
+
+            assertEquals(1, batch.getResults().size());
+            assertEquals((Integer) 1, batch.getResults().get(0).getExitStatusOrNull());
+            assertTrue(!marker.exists());
+        } finally {
+            marker.delete();
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import io.cloudsoft.terraform.infrastructure.TerraformParameters;
+
+/** Compares the time taken by the incremental log reader with the previous copy-then-dd approach,
+ * for a poll finding a little new output at the end of logs of different sizes, using a local shell.
+ * Not a test; run {@link #main(String[])} by hand. */
+public class SshToolboxIncrementalFileBenchmark {
+
+    /** the reader used before offsets were kept with the inode */
+    static final String LEGACY_SETUP = "truncate --size=0 %1$s.snapshot; echo 0 > %1$s.offset";
+    static final String LEGACY_CAT = "cp %1$s %1$s.snapshot; dd status=none if=%1$s.snapshot bs=1 skip=`cat %1$s.offset`; wc -c <%1$s.snapshot >%1$s.offset";
+
+    public static void main(String[] args) throws Exception {
+        TerraformParameters params = mock(TerraformParameters.class);
+        when(params.getSSHKey()).thenReturn("not a real key");
+        final SshToolbox ssh = new SshToolbox(params, message -> {});
+
+        for (int size : Arrays.asList(64 * 1024, 1024 * 1024, 8 * 1024 * 1024)) {
+            final File dir = Files.createTempDirectory("incremental-file-benchmark").toFile();
+            try {
+                final String log = new File(dir, "out.log").getAbsolutePath();
+                final String legacyLog = log + ".legacy";
+                SshToolboxBatchTest.runLocally(ssh.setupIncrementalFileCommand(log) + "; " + String.format(LEGACY_SETUP, legacyLog));
+                SshToolboxBatchTest.runLocally(String.format("head -c %d /dev/zero | tr '\\\\0' x > %s; cp %s %s", size, log, log, legacyLog));
+
+                long legacyNanos = 0, currentNanos = 0;
+                final int polls = 3;
+                for (int i = 0; i < polls; i++) {
+                    SshToolboxBatchTest.runLocally(String.format("printf 'line %d\\n' | tee -a %s >> %s", i, log, legacyLog));
+                    long start = System.nanoTime();
+                    SshToolboxBatchTest.runLocally(String.format(LEGACY_CAT, legacyLog));
+                    legacyNanos += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    SshToolboxBatchTest.runLocally(ssh.catIncrementalFileCommand(log));
+                    currentNanos += System.nanoTime() - start;
+                }
+                System.out.println(String.format("log of %8d bytes: copy+dd %8.1f ms/poll, seek+tail %6.1f ms/poll",
+                    size, legacyNanos / 1e6 / polls, currentNanos / 1e6 / polls));
+            } finally {
+                SshToolboxBatchTest.runLocally("rm -rf " + dir.getAbsolutePath());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package io.cloudsoft.terraform.infrastructure.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.cloudsoft.terraform.infrastructure.TerraformParameters;
+
+/** Runs the incremental log commands with a local shell against a temporary file. */
+public class SshToolboxIncrementalFileTest {
+
+    private SshToolbox ssh;
+    private File dir;
+    private String log;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        TerraformParameters params = mock(TerraformParameters.class);
+        when(params.getSSHKey()).thenReturn("not a real key");
+        ssh = new SshToolbox(params, message -> {});
+        dir = Files.createTempDirectory("incremental-file-test").toFile();
+        log = new File(dir, "out.log").getAbsolutePath();
+    }
+
+    @AfterEach
+    public void teardown() throws Exception {
+        SshToolboxBatchTest.runLocally("rm -rf " + dir.getAbsolutePath());
+    }
+
+    private void append(String text) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(log, true)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private String cat() throws Exception {
+        return new String(SshToolboxBatchTest.runLocally(ssh.catIncrementalFileCommand(log)), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void returnsOnlyNewOutput() throws Exception {
+        SshToolboxBatchTest.runLocally(ssh.setupIncrementalFileCommand(log));
+        assertEquals("", cat());
+
+        append("one\n");
+        assertEquals("one\n", cat());
+        assertEquals("", cat());
+
+        append("two\nthree");
+        append("\n");
+        assertEquals("two\nthree\n", cat());
+    }
+
+    @Test
+    public void restartsAfterTruncationOrReplacement() throws Exception {
+        SshToolboxBatchTest.runLocally(ssh.setupIncrementalFileCommand(log));
+        append("a long first line\n");
+        assertEquals("a long first line\n", cat());
+
+        new FileOutputStream(log).close();
+        append("short\n");
+        assertEquals("short\n", cat());
+
+        // replaced with a file of the same size
+        SshToolboxBatchTest.runLocally("mv " + log + " " + log + ".1; printf 'other\\n' > " + log);
+        assertEquals("other\n", cat());
+    }
+
+    @Test
+    public void continuesFromLegacyOffset() throws Exception {
+        append("already read\n");
+        SshToolboxBatchTest.runLocally("echo 13 > " + log + ".offset");
+        append("new\n");
+        assertEquals("new\n", cat());
+    }
+
+}